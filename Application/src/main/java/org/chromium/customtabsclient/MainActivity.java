@@ -267,7 +267,7 @@ public class MainActivity
             Intent openLinkIntent = new Intent(Intent.ACTION_VIEW, Uri.parse(url));
             PendingIntent openLinkPendingIntent = PendingIntent.getActivity(this, 0, openLinkIntent, 0);
             Bitmap bitmap = BitmapFactory.decodeResource(getResources(), R.drawable.ic_launcher);
-            Uri uri = BrowserServiceFileProvider.generateUri(this, bitmap, "ic_launcher", 1);
+            Uri uri = BrowserServiceFileProvider.generateUri(this, bitmap);
 
             BrowserActionItem item1 = new BrowserActionItem(
                     "Open the link (without icon)", openLinkPendingIntent, 0);
@@ -0,0 +1,152 @@
+// Copyright 2019 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.internal.DoNotInstrument;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests for {@link KeyValueStore}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@DoNotInstrument
+@Config(manifest = Config.NONE)
+public class KeyValueStoreTest {
+    private Context mContext;
+    private File mFile;
+    private KeyValueStore mStore;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mFile = new File(mContext.getFilesDir(), "test_store");
+        mFile.delete();
+        mStore = new KeyValueStore(mFile);
+    }
+
+    @Test
+    public void readsWrittenValues() {
+        Set<String> set = new HashSet<>(Arrays.asList("a", "b"));
+        mStore.putString("ns/string", "value");
+        mStore.putLong("ns/long", 42);
+        mStore.putStringSet("ns/set", set);
+
+        assertEquals("value", mStore.getString("ns/string"));
+        assertEquals(42, mStore.getLong("ns/long", 0));
+        assertEquals(set, mStore.getStringSet("ns/set"));
+    }
+
+    @Test
+    public void persistsValues() {
+        Set<String> set = new HashSet<>(Arrays.asList("a", "b"));
+        mStore.putString("ns/string", "value");
+        mStore.putLong("ns/long", 42);
+        mStore.putStringSet("ns/set", set);
+        mStore.flush();
+
+        KeyValueStore reloaded = new KeyValueStore(mFile);
+        assertEquals("value", reloaded.getString("ns/string"));
+        assertEquals(42, reloaded.getLong("ns/long", 0));
+        assertEquals(set, reloaded.getStringSet("ns/set"));
+    }
+
+    @Test
+    public void removesValues() {
+        mStore.putString("ns/string", "value");
+        mStore.putString("ns/string", null);
+        mStore.flush();
+
+        assertNull(mStore.getString("ns/string"));
+        assertNull(new KeyValueStore(mFile).getString("ns/string"));
+    }
+
+    @Test
+    public void returnsValuesWithPrefix() {
+        mStore.putStringSet("ns/origin", Collections.singleton("package"));
+        mStore.putLong("other/long", 1);
+
+        Map<String, Object> values = mStore.getAll("ns/");
+        assertEquals(1, values.size());
+        assertEquals(Collections.singleton("package"), values.get("origin"));
+    }
+
+    @Test
+    public void migratesSharedPreferences() {
+        mContext.getSharedPreferences("legacy", Context.MODE_PRIVATE).edit()
+                .putString("string", "value")
+                .putLong("long", 42)
+                .commit();
+
+        mStore.migrateFromSharedPreferences(mContext, "legacy", "ns");
+        assertEquals("value", mStore.getString("ns/string"));
+        assertEquals(42, mStore.getLong("ns/long", 0));
+
+        // Later changes to the preferences aren't picked up.
+        mContext.getSharedPreferences("legacy", Context.MODE_PRIVATE).edit()
+                .putString("string", "new value")
+                .commit();
+        mStore.migrateFromSharedPreferences(mContext, "legacy", "ns");
+        assertEquals("value", mStore.getString("ns/string"));
+    }
+
+    @Test
+    public void writesMigratedValuesBeforeReturning() {
+        mContext.getSharedPreferences("legacy", Context.MODE_PRIVATE).edit()
+                .putString("string", "value")
+                .commit();
+
+        mStore.migrateFromSharedPreferences(mContext, "legacy", "ns");
+
+        assertEquals("value", new KeyValueStore(mFile).getString("ns/string"));
+    }
+
+    @Test
+    public void keepsSharedPreferencesIfWritingFails() throws IOException {
+        mContext.getSharedPreferences("legacy", Context.MODE_PRIVATE).edit()
+                .putString("string", "value")
+                .commit();
+        // The store can't be written since its parent directory is a file.
+        File parent = new File(mContext.getFilesDir(), "not_a_directory");
+        parent.delete();
+        assertTrue(parent.createNewFile());
+        KeyValueStore store = new KeyValueStore(new File(parent, "test_store"));
+
+        store.migrateFromSharedPreferences(mContext, "legacy", "ns");
+
+        assertEquals("value", mContext.getSharedPreferences("legacy", Context.MODE_PRIVATE)
+                .getString("string", null));
+        // Nor is the namespace marked as migrated.
+        assertEquals(0, store.getLong("ns/.migrated", 0));
+    }
+}
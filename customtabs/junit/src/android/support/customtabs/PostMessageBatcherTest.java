@@ -0,0 +1,265 @@
+// Copyright 2019 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IInterface;
+import android.os.Looper;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.support.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.internal.DoNotInstrument;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link PostMessageBatcher}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@DoNotInstrument
+@Config(manifest = Config.NONE)
+public class PostMessageBatcherTest {
+    private static final long MAX_LATENCY_MS = 100;
+
+    private final List<List<String>> mSentBatches = new ArrayList<>();
+    private final List<String> mSentMessages = new ArrayList<>();
+    private final List<String> mFailedMessages = new ArrayList<>();
+    private int mBatchResult = -1;
+    @Nullable
+    private RuntimeException mBatchException;
+    private int mQueueFullCount;
+    private int mQueueDrainedCount;
+
+    private final PostMessageBatcher.Sender mSender = new PostMessageBatcher.Sender() {
+        @Override
+        public int send(String message, Bundle extras) {
+            mSentMessages.add(message);
+            return CustomTabsService.RESULT_SUCCESS;
+        }
+
+        @Override
+        public int sendBatch(List<String> messages) {
+            if (mBatchException != null) {
+                RuntimeException exception = mBatchException;
+                mBatchException = null;
+                throw exception;
+            }
+            mSentBatches.add(new ArrayList<>(messages));
+            return mBatchResult == -1 ? messages.size() : mBatchResult;
+        }
+    };
+
+    private final PostMessageBatcher.Listener mListener = new PostMessageBatcher.Listener() {
+        @Override
+        public void onQueueFull() {
+            mQueueFullCount++;
+        }
+
+        @Override
+        public void onQueueDrained() {
+            mQueueDrainedCount++;
+        }
+
+        @Override
+        public void onMessagesFailed(int result, List<String> messages) {
+            mFailedMessages.addAll(messages);
+        }
+    };
+
+    private PostMessageBatcher mBatcher;
+
+    @Before
+    public void setUp() {
+        mBatcher = createBatcher(10);
+    }
+
+    private PostMessageBatcher createBatcher(int maxQueueSize) {
+        return new PostMessageBatcher(mSender, MAX_LATENCY_MS, maxQueueSize, mListener,
+                Runnable::run, new Handler(Looper.getMainLooper()));
+    }
+
+    @Test
+    public void sendsMessagesInOneBatchOnceLatencyExpires() {
+        mBatcher.offer("1", null);
+        mBatcher.offer("2", null);
+        mBatcher.offer("3", null);
+        assertEquals(3, mBatcher.getQueueDepth());
+        assertTrue(mSentBatches.isEmpty());
+
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        assertEquals(Collections.singletonList(Arrays.asList("1", "2", "3")), mSentBatches);
+        assertEquals(0, mBatcher.getQueueDepth());
+    }
+
+    @Test
+    public void sendsMessagesWithExtrasAlone() {
+        Bundle extras = new Bundle();
+        extras.putString("key", "value");
+        mBatcher.offer("1", null);
+        mBatcher.offer("2", extras);
+        mBatcher.offer("3", null);
+        mBatcher.offer("4", null);
+        mBatcher.flush();
+
+        // Runs of a single message don't need a batch transaction.
+        assertEquals(Arrays.asList("1", "2"), mSentMessages);
+        assertEquals(Collections.singletonList(Arrays.asList("3", "4")), mSentBatches);
+    }
+
+    @Test
+    public void failsBatchAndKeepsDrainingWhenSenderThrows() {
+        mBatchException = new IllegalStateException();
+        mBatcher.offer("1", null);
+        mBatcher.offer("2", null);
+        mBatcher.flush();
+        mBatcher.offer("3", null);
+        mBatcher.offer("4", null);
+        mBatcher.flush();
+
+        assertEquals(Arrays.asList("1", "2"), mFailedMessages);
+        assertEquals(Collections.singletonList(Arrays.asList("3", "4")), mSentBatches);
+        assertEquals(0, mBatcher.getQueueDepth());
+    }
+
+    @Test
+    public void fallsBackToSingleMessagesWhenBatchesAreUnsupported() {
+        mBatchResult = 0;
+        mBatcher.offer("1", null);
+        mBatcher.offer("2", null);
+        mBatcher.flush();
+        mBatcher.offer("3", null);
+        mBatcher.offer("4", null);
+        mBatcher.flush();
+
+        assertEquals(1, mSentBatches.size());
+        assertEquals(Arrays.asList("1", "2", "3", "4"), mSentMessages);
+        assertTrue(mFailedMessages.isEmpty());
+    }
+
+    @Test
+    public void fallsBackToSingleMessagesForServicesThatPredateBatches() throws RemoteException {
+        OldPostMessageService oldService = new OldPostMessageService();
+        final IPostMessageService service = IPostMessageService.Stub.asInterface(oldService);
+        // The proxy reads the empty reply to the unknown transaction as 0.
+        assertEquals(0, service.onPostMessages(null, Arrays.asList("0"), null));
+
+        PostMessageBatcher batcher = new PostMessageBatcher(new PostMessageBatcher.Sender() {
+            @Override
+            public int send(String message, Bundle extras) {
+                try {
+                    service.onPostMessage(null, message, extras);
+                    return CustomTabsService.RESULT_SUCCESS;
+                } catch (RemoteException e) {
+                    return CustomTabsService.RESULT_FAILURE_REMOTE_ERROR;
+                }
+            }
+
+            @Override
+            public int sendBatch(List<String> messages) {
+                try {
+                    return service.onPostMessages(null, messages, null);
+                } catch (RemoteException e) {
+                    return CustomTabsService.RESULT_FAILURE_REMOTE_ERROR;
+                }
+            }
+        }, MAX_LATENCY_MS, 10, mListener, Runnable::run, new Handler(Looper.getMainLooper()));
+        batcher.offer("1", null);
+        batcher.offer("2", null);
+        batcher.offer("3", null);
+        batcher.flush();
+
+        assertEquals(Arrays.asList("1", "2", "3"), oldService.mMessages);
+        assertTrue(mFailedMessages.isEmpty());
+    }
+
+    /**
+     * A PostMessageService built with a version of the library that predates batches, reached
+     * through the generated proxy as it would be from another process.
+     */
+    private static class OldPostMessageService extends IPostMessageService.Stub {
+        final List<String> mMessages = new ArrayList<>();
+
+        @Override
+        public void onMessageChannelReady(ICustomTabsCallback callback, Bundle extras) {}
+
+        @Override
+        public void onPostMessage(ICustomTabsCallback callback, String message, Bundle extras) {
+            mMessages.add(message);
+        }
+
+        @Override
+        public int onPostMessages(ICustomTabsCallback callback, List<String> messages,
+                Bundle extras) {
+            throw new AssertionError("Not part of the old interface");
+        }
+
+        @Override
+        public IInterface queryLocalInterface(String descriptor) {
+            return null;
+        }
+
+        @Override
+        public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            // What Binder#onTransact does for transactions the old Stub doesn't know.
+            if (code == TRANSACTION_onPostMessages) return false;
+            return super.onTransact(code, data, reply, flags);
+        }
+    }
+
+    @Test
+    public void reportsMessagesTheBatchFailedFor() {
+        mBatchResult = 1;
+        mBatcher.offer("1", null);
+        mBatcher.offer("2", null);
+        mBatcher.offer("3", null);
+        mBatcher.flush();
+
+        assertEquals(Arrays.asList("2", "3"), mFailedMessages);
+    }
+
+    @Test
+    public void refusesMessagesWhileQueueIsFull() {
+        mBatcher = createBatcher(2);
+        assertTrue(mBatcher.offer("1", null));
+        assertTrue(mBatcher.offer("2", null));
+        assertFalse(mBatcher.offer("3", null));
+        assertFalse(mBatcher.offer("4", null));
+        assertTrue(mBatcher.isQueueFull());
+        assertEquals(1, mQueueFullCount);
+
+        mBatcher.flush();
+
+        assertFalse(mBatcher.isQueueFull());
+        assertEquals(1, mQueueDrainedCount);
+        assertTrue(mBatcher.offer("5", null));
+    }
+}
@@ -0,0 +1,61 @@
+// Copyright 2019 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package android.support.customtabs.browseractions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.internal.DoNotInstrument;
+
+/**
+ * Tests for the naming of the images saved by {@link BrowserServiceFileProvider}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@DoNotInstrument
+@Config(manifest = Config.NONE)
+public class BrowserServiceFileProviderTest {
+    @Test
+    public void namesFilesAfterBitmap() {
+        Bitmap bitmap = createBitmap(Color.RED);
+
+        assertEquals(BrowserServiceFileProvider.getFileName(bitmap),
+                BrowserServiceFileProvider.getFileName(bitmap));
+        // Uris don't depend on the pixels, the files they refer to are named after the content.
+        assertNotEquals(BrowserServiceFileProvider.getFileName(bitmap),
+                BrowserServiceFileProvider.getFileName(createBitmap(Color.RED)));
+    }
+
+    @Test
+    public void hashesBitmapContent() {
+        String hash = BrowserServiceFileProvider.computeContentHash(createBitmap(Color.RED));
+
+        assertEquals(hash, BrowserServiceFileProvider.computeContentHash(createBitmap(Color.RED)));
+        assertNotEquals(hash,
+                BrowserServiceFileProvider.computeContentHash(createBitmap(Color.BLUE)));
+    }
+
+    private static Bitmap createBitmap(int color) {
+        Bitmap bitmap = Bitmap.createBitmap(4, 4, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        return bitmap;
+    }
+}
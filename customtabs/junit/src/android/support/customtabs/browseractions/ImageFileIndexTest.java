@@ -0,0 +1,129 @@
+// Copyright 2019 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package android.support.customtabs.browseractions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.internal.DoNotInstrument;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests for {@link ImageFileIndex}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@DoNotInstrument
+@Config(manifest = Config.NONE)
+public class ImageFileIndexTest {
+    private static final String EXTENSION = ".png";
+    private static final int IMAGE_SIZE = 10;
+
+    private File mDirectory;
+    private ImageFileIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(RuntimeEnvironment.application.getFilesDir(), "image_file_index");
+        mDirectory.mkdirs();
+        for (File file : mDirectory.listFiles()) file.delete();
+        mIndex = new ImageFileIndex(mDirectory, EXTENSION);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedImages() throws IOException {
+        write("a");
+        write("b");
+        write("c");
+        assertTrue(mIndex.recordAccess("a" + EXTENSION));
+
+        assertTrue(mIndex.trimToSize(2 * IMAGE_SIZE, Collections.emptySet()));
+        assertFalse(exists("b"));
+        assertTrue(exists("a"));
+        assertTrue(exists("c"));
+        assertEquals(2 * IMAGE_SIZE, mIndex.getTotalSize());
+    }
+
+    @Test
+    public void keepsImagesOfCurrentBatch() throws IOException {
+        write("old");
+        write("a");
+        write("b");
+        // Reading an older image makes it the most recently used one.
+        mIndex.recordAccess("old" + EXTENSION);
+
+        mIndex.trimToSize(0, Arrays.asList("a" + EXTENSION, "b" + EXTENSION));
+        assertTrue(exists("a"));
+        assertTrue(exists("b"));
+        // The most recently used image is kept as well.
+        assertTrue(exists("old"));
+
+        mIndex.trimToSize(0, Collections.singleton("a" + EXTENSION));
+        assertTrue(exists("a"));
+        assertFalse(exists("b"));
+        assertTrue(exists("old"));
+    }
+
+    @Test
+    public void ordersImagesFoundOnDiskByModificationTime() throws IOException {
+        create("b").setLastModified(1000);
+        create("a").setLastModified(2000);
+        ImageFileIndex index = new ImageFileIndex(mDirectory, EXTENSION);
+        assertEquals(2 * IMAGE_SIZE, index.getTotalSize());
+
+        index.trimToSize(IMAGE_SIZE, Collections.emptySet());
+        assertFalse(exists("b"));
+        assertTrue(exists("a"));
+    }
+
+    @Test
+    public void removesImagesUnusedSinceGivenTime() throws IOException {
+        create("old").setLastModified(1000);
+        create("new").setLastModified(3000);
+        ImageFileIndex index = new ImageFileIndex(mDirectory, EXTENSION);
+
+        assertTrue(index.removeUnusedSince(2000));
+        assertFalse(exists("old"));
+        assertTrue(exists("new"));
+        assertEquals(IMAGE_SIZE, index.getTotalSize());
+    }
+
+    private void write(String name) throws IOException {
+        mIndex.recordWrite(create(name));
+    }
+
+    private File create(String name) throws IOException {
+        File file = new File(mDirectory, name + EXTENSION);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[IMAGE_SIZE]);
+        }
+        return file;
+    }
+
+    private boolean exists(String name) {
+        return new File(mDirectory, name + EXTENSION).exists();
+    }
+}
@@ -0,0 +1,127 @@
+// Copyright 2019 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package android.support.customtabs.trusted;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import android.content.ComponentName;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.internal.DoNotInstrument;
+
+/**
+ * Tests for {@link ScopeResolutionCache}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@DoNotInstrument
+@Config(manifest = Config.NONE)
+public class ScopeResolutionCacheTest {
+    private static final String ORIGIN = "https://www.example.com";
+    private static final Uri SCOPE = Uri.parse("https://www.example.com/app");
+    private static final ComponentName SERVICE =
+            new ComponentName("com.example.twa", "com.example.twa.Service");
+
+    private final Object mVerifiedPackages = new Object();
+    private ScopeResolutionCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new ScopeResolutionCache();
+    }
+
+    @Test
+    public void returnsCachedService() {
+        put(SCOPE, SERVICE);
+        assertEquals(SERVICE, mCache.get(SCOPE, ORIGIN, mVerifiedPackages).service);
+    }
+
+    @Test
+    public void returnsCachedAbsenceOfService() {
+        put(SCOPE, null);
+        ScopeResolutionCache.Result result = mCache.get(SCOPE, ORIGIN, mVerifiedPackages);
+        assertNotNull(result);
+        assertNull(result.service);
+    }
+
+    @Test
+    public void returnsServiceForNestedScope() {
+        put(SCOPE, SERVICE);
+        Uri nestedScope = Uri.parse("https://www.example.com/app/notifications");
+        assertEquals(SERVICE, mCache.get(nestedScope, ORIGIN, mVerifiedPackages).service);
+    }
+
+    @Test
+    public void doesntMatchSiblingScope() {
+        put(SCOPE, SERVICE);
+        Uri siblingScope = Uri.parse("https://www.example.com/application");
+        assertNull(mCache.get(siblingScope, ORIGIN, mVerifiedPackages));
+    }
+
+    @Test
+    public void doesntMatchOtherOrigin() {
+        put(SCOPE, SERVICE);
+        assertNull(mCache.get(SCOPE, "https://www.other.com", mVerifiedPackages));
+    }
+
+    @Test
+    public void isInvalidated_WhenVerifiedPackagesChange() {
+        put(SCOPE, SERVICE);
+        assertNull(mCache.get(SCOPE, ORIGIN, new Object()));
+    }
+
+    @Test
+    public void isInvalidated_WhenCleared() {
+        put(SCOPE, SERVICE);
+        mCache.clear();
+        assertNull(mCache.get(SCOPE, ORIGIN, mVerifiedPackages));
+    }
+
+    @Test
+    public void isInvalidated_WhenPackagesChange() {
+        put(SCOPE, SERVICE);
+        ScopeResolutionCache.onPackagesChanged();
+        assertNull(mCache.get(SCOPE, ORIGIN, mVerifiedPackages));
+    }
+
+    @Test
+    public void dropsResult_ResolvedBeforeClearing() {
+        assertNull(mCache.get(SCOPE, ORIGIN, mVerifiedPackages));
+        int generation = mCache.getGeneration();
+        mCache.clear();
+        mCache.put(SCOPE, ORIGIN, generation, SERVICE);
+        assertNull(mCache.get(SCOPE, ORIGIN, mVerifiedPackages));
+    }
+
+    @Test
+    public void dropsResult_ResolvedBeforePackagesChanged() {
+        assertNull(mCache.get(SCOPE, ORIGIN, mVerifiedPackages));
+        int generation = mCache.getGeneration();
+        ScopeResolutionCache.onPackagesChanged();
+        mCache.put(SCOPE, ORIGIN, generation, SERVICE);
+        assertNull(mCache.get(SCOPE, ORIGIN, mVerifiedPackages));
+    }
+
+    private void put(Uri scope, ComponentName service) {
+        mCache.get(scope, ORIGIN, mVerifiedPackages);
+        mCache.put(scope, ORIGIN, mCache.getGeneration(), service);
+    }
+}
@@ -0,0 +1,78 @@
+// Copyright 2019 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package android.support.customtabs.trusted;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.internal.DoNotInstrument;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Tests for {@link SerialExecutor}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@DoNotInstrument
+@Config(manifest = Config.NONE)
+public class SerialExecutorTest {
+    private final ArrayDeque<Runnable> mPending = new ArrayDeque<>();
+    private final List<Integer> mRun = new ArrayList<>();
+    private boolean mReject;
+
+    private final SerialExecutor mExecutor = new SerialExecutor(task -> {
+        if (mReject) throw new RejectedExecutionException();
+        mPending.add(task);
+    });
+
+    @Test
+    public void runsTasksOneAtATimeInOrder() {
+        mExecutor.execute(() -> mRun.add(1));
+        mExecutor.execute(() -> mRun.add(2));
+        assertEquals(1, mPending.size());
+        assertEquals(1, mExecutor.getQueueDepth());
+
+        runPending();
+        assertEquals(Arrays.asList(1, 2), mRun);
+    }
+
+    @Test
+    public void keepsRunningTasksAfterRejection() {
+        mReject = true;
+        try {
+            mExecutor.execute(() -> mRun.add(1));
+            fail();
+        } catch (RejectedExecutionException e) {
+            // Expected.
+        }
+
+        mReject = false;
+        mExecutor.execute(() -> mRun.add(2));
+        runPending();
+        assertEquals(Arrays.asList(2), mRun);
+    }
+
+    private void runPending() {
+        while (!mPending.isEmpty()) mPending.poll().run();
+    }
+}
@@ -0,0 +1,197 @@
+// Copyright 2019 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package android.support.customtabs.trusted;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.Notification;
+import android.content.ComponentName;
+import android.content.pm.PackageInfo;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.service.notification.StatusBarNotification;
+import android.support.customtabs.trusted.TrustedWebActivityServiceWrapper.BatchResultArgs;
+import android.support.customtabs.trusted.TrustedWebActivityServiceWrapper.NotificationDescriptor;
+import android.support.customtabs.trusted.TrustedWebActivityServiceWrapper.NotifyNotificationArgs;
+import android.support.customtabs.trusted.TrustedWebActivityServiceWrapper.ResultArgs;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.internal.DoNotInstrument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link TrustedWebActivityServiceWrapper}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@DoNotInstrument
+@Config(manifest = Config.NONE)
+public class TrustedWebActivityServiceWrapperTest {
+    private static final String CHANNEL = "channel";
+    private static final String PACKAGE = "com.example.twa";
+
+    private final ITrustedWebActivityService mService = mock(ITrustedWebActivityService.class);
+    private TrustedWebActivityServiceWrapper mWrapper;
+    private List<NotifyNotificationArgs> mNotifications;
+    /** Makes each test see a new version of the client, so icons aren't shared between tests. */
+    private long mLastUpdateTime = System.nanoTime();
+
+    @Before
+    public void setUp() throws RemoteException {
+        installClient();
+        TrustedWebActivityServiceWrapper.onPackagesChanged();
+        mWrapper = new TrustedWebActivityServiceWrapper(mService,
+                new ComponentName(PACKAGE, "com.example.twa.Service"),
+                RuntimeEnvironment.application);
+
+        Bundle smallIcon = new Bundle();
+        smallIcon.putParcelable(TrustedWebActivityService.KEY_SMALL_ICON_BITMAP,
+                Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888));
+        when(mService.getSmallIconBitmap()).thenReturn(smallIcon);
+
+        mNotifications = Arrays.asList(
+                new NotifyNotificationArgs("tag1", 1, new Notification(), CHANNEL),
+                new NotifyNotificationArgs("tag2", 2, new Notification(), CHANNEL));
+    }
+
+    @Test
+    public void notifiesInOneCall() throws RemoteException {
+        when(mService.notifyNotificationsWithChannel(any(Bundle.class)))
+                .thenReturn(new BatchResultArgs(new boolean[] { true, false }).toBundle());
+
+        assertArrayEquals(new boolean[] { true, false }, mWrapper.notify(mNotifications));
+        verify(mService, never()).notifyNotificationWithChannel(any(Bundle.class));
+    }
+
+    @Test
+    public void fallsBackToSingleNotifyCalls_WhenBatchResultIsNull() throws RemoteException {
+        // A Service built with an older version of the library returns null.
+        when(mService.notifyNotificationsWithChannel(any(Bundle.class))).thenReturn(null);
+        when(mService.notifyNotificationWithChannel(any(Bundle.class)))
+                .thenReturn(new ResultArgs(true).toBundle())
+                .thenReturn(new ResultArgs(false).toBundle());
+
+        assertArrayEquals(new boolean[] { true, false }, mWrapper.notify(mNotifications));
+
+        ArgumentCaptor<Bundle> args = ArgumentCaptor.forClass(Bundle.class);
+        verify(mService, times(2)).notifyNotificationWithChannel(args.capture());
+        assertEquals("tag1", NotifyNotificationArgs.fromBundle(args.getAllValues().get(0))
+                .platformTag);
+        assertEquals("tag2", NotifyNotificationArgs.fromBundle(args.getAllValues().get(1))
+                .platformTag);
+    }
+
+    @Test
+    public void cachesSmallIconBitmap() throws RemoteException {
+        Bitmap bitmap = mWrapper.getSmallIconBitmap();
+        assertSame(bitmap, mWrapper.getSmallIconBitmap());
+        verify(mService, times(1)).getSmallIconBitmap();
+    }
+
+    @Test
+    public void refetchesSmallIconBitmap_OnlyAfterPackagesChanged() throws RemoteException {
+        mWrapper.getSmallIconBitmap();
+
+        // The installed version isn't looked up again until apps change.
+        mLastUpdateTime++;
+        installClient();
+        mWrapper.getSmallIconBitmap();
+        verify(mService, times(1)).getSmallIconBitmap();
+
+        TrustedWebActivityServiceWrapper.onPackagesChanged();
+        mWrapper.getSmallIconBitmap();
+        verify(mService, times(2)).getSmallIconBitmap();
+    }
+
+    @Test
+    public void queriesNotificationsWithTagPrefix() {
+        StatusBarNotification[] notifications = {
+                createNotification("chat:1", 1, 300),
+                createNotification("news:1", 2, 200),
+                createNotification(null, 3, 100),
+                null,
+                createNotification("chat:2", 4, 100),
+        };
+
+        // Matching notifications are ordered by post time.
+        assertEquals(Arrays.asList("chat:2", "chat:1"),
+                getTags(NotificationDescriptor.query(notifications, "chat:", 0, 10)));
+        assertEquals(Arrays.asList(null, "chat:2", "news:1", "chat:1"),
+                getTags(NotificationDescriptor.query(notifications, null, 0, 10)));
+    }
+
+    @Test
+    public void queriesNotificationsInPages() {
+        StatusBarNotification[] notifications = new StatusBarNotification[5];
+        for (int i = 0; i < notifications.length; i++) {
+            // Posted in reverse order, at the same time for ids 3 and 4.
+            notifications[i] = createNotification("tag" + i, i, i >= 3 ? 0 : 100 - i);
+        }
+
+        assertEquals(Arrays.asList("tag3", "tag4"),
+                getTags(NotificationDescriptor.query(notifications, null, 0, 2)));
+        assertEquals(Arrays.asList("tag2", "tag1"),
+                getTags(NotificationDescriptor.query(notifications, null, 2, 2)));
+        assertEquals(Arrays.asList("tag0"),
+                getTags(NotificationDescriptor.query(notifications, null, 4, 2)));
+        assertEquals(0, NotificationDescriptor.query(notifications, null, 5, 2).size());
+        assertEquals(0, NotificationDescriptor.query(notifications, null, 0, 0).size());
+        // Negative values are treated as 0.
+        assertEquals(Arrays.asList("tag3"),
+                getTags(NotificationDescriptor.query(notifications, null, -1, 1)));
+        assertEquals(0, NotificationDescriptor.query(notifications, null, 0, -1).size());
+    }
+
+    private static StatusBarNotification createNotification(String tag, int id, long postTime) {
+        StatusBarNotification notification = mock(StatusBarNotification.class);
+        when(notification.getTag()).thenReturn(tag);
+        when(notification.getId()).thenReturn(id);
+        when(notification.getPostTime()).thenReturn(postTime);
+        when(notification.getNotification()).thenReturn(new Notification());
+        return notification;
+    }
+
+    private static List<String> getTags(List<NotificationDescriptor> descriptors) {
+        List<String> tags = new ArrayList<>();
+        for (NotificationDescriptor descriptor : descriptors) tags.add(descriptor.platformTag);
+        return tags;
+    }
+
+    private void installClient() {
+        PackageInfo info = new PackageInfo();
+        info.packageName = PACKAGE;
+        info.versionCode = 1;
+        info.lastUpdateTime = mLastUpdateTime;
+        shadowOf(RuntimeEnvironment.application.getPackageManager()).addPackage(info);
+    }
+}
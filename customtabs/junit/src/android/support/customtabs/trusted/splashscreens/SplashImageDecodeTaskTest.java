@@ -0,0 +1,67 @@
+// Copyright 2019 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package android.support.customtabs.trusted.splashscreens;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.graphics.Bitmap;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.internal.DoNotInstrument;
+
+/**
+ * Tests for the reuse of splash images by {@link SplashImageDecodeTask}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@DoNotInstrument
+@Config(manifest = Config.NONE)
+public class SplashImageDecodeTaskTest {
+    @After
+    public void tearDown() {
+        SplashImageDecodeTask.clearPooledBitmap();
+    }
+
+    @Test
+    public void keepsReleasedBitmapForReuse() {
+        Bitmap bitmap = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        SplashImageDecodeTask.releaseBitmap(bitmap);
+
+        assertSame(bitmap, SplashImageDecodeTask.obtainPooledBitmap());
+        // It's handed out only once.
+        assertNull(SplashImageDecodeTask.obtainPooledBitmap());
+    }
+
+    @Test
+    public void doesntKeepImmutableBitmaps() {
+        Bitmap bitmap = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888).copy(
+                Bitmap.Config.ARGB_8888, false);
+        SplashImageDecodeTask.releaseBitmap(bitmap);
+
+        assertNull(SplashImageDecodeTask.obtainPooledBitmap());
+    }
+
+    @Test
+    public void dropsBitmapWhenCleared() {
+        SplashImageDecodeTask.releaseBitmap(Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888));
+        SplashImageDecodeTask.clearPooledBitmap();
+
+        assertNull(SplashImageDecodeTask.obtainPooledBitmap());
+    }
+}
@@ -80,7 +80,8 @@ public abstract class CustomTabsService extends Service {
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({RESULT_SUCCESS, RESULT_FAILURE_DISALLOWED,
-            RESULT_FAILURE_REMOTE_ERROR, RESULT_FAILURE_MESSAGING_ERROR})
+            RESULT_FAILURE_REMOTE_ERROR, RESULT_FAILURE_MESSAGING_ERROR,
+            RESULT_FAILURE_QUEUE_FULL})
     public @interface Result {
     }
 
@@ -102,6 +103,11 @@ public abstract class CustomTabsService extends Service {
      * message channel.
      */
     public static final int RESULT_FAILURE_MESSAGING_ERROR = -3;
+    /**
+     * Indicates that the postMessage request was refused because too many messages are waiting to
+     * be sent. See {@link CustomTabsSession#enablePostMessageBatching}.
+     */
+    public static final int RESULT_FAILURE_QUEUE_FULL = -4;
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({RELATION_USE_AS_ORIGIN, RELATION_HANDLE_ALL_URLS})
@@ -198,18 +204,35 @@ public abstract class CustomTabsService extends Service {
         @Override
         public boolean requestPostMessageChannelWithExtras(ICustomTabsCallback callback,
                                                  Uri postMessageOrigin, Bundle extras) {
-            return CustomTabsService.this.requestPostMessageChannel(
+            boolean accepted = CustomTabsService.this.requestPostMessageChannel(
                     new CustomTabsSessionToken(callback, getSessionIdFromBundle(extras)),
                     postMessageOrigin);
+            // Only start reading the client's pipe once there is a channel for it.
+            if (accepted) {
+                PostMessagePipe.BROWSER.acceptReadEnd(callback.asBinder(), extras);
+            } else {
+                PostMessagePipe.closeReadEnd(extras);
+            }
+            return accepted;
         }
 
         @Override
         public int postMessage(ICustomTabsCallback callback, String message, Bundle extras) {
+            message = PostMessagePipe.BROWSER.resolve(callback.asBinder(), message, extras);
+            if (message == null) return RESULT_FAILURE_MESSAGING_ERROR;
             return CustomTabsService.this.postMessage(
                     new CustomTabsSessionToken(callback, getSessionIdFromBundle(extras)),
                     message, extras);
         }
 
+        @Override
+        public int postMessages(ICustomTabsCallback callback, List<String> messages,
+                Bundle extras) {
+            return CustomTabsService.this.postMessages(
+                    new CustomTabsSessionToken(callback, getSessionIdFromBundle(extras)),
+                    messages, extras);
+        }
+
         @Override
         public boolean validateRelationship(
                 ICustomTabsCallback callback, @Relation int relation, Uri origin, Bundle extras) {
@@ -257,6 +280,7 @@ public abstract class CustomTabsService extends Service {
                         mDeathRecipientMap.get(binder);
                 binder.unlinkToDeath(deathRecipient, 0);
                 mDeathRecipientMap.remove(binder);
+                PostMessagePipe.BROWSER.close(binder);
             }
         } catch (NoSuchElementException e) {
             return false;
@@ -365,6 +389,27 @@ public abstract class CustomTabsService extends Service {
     protected abstract int postMessage(
             CustomTabsSessionToken sessionToken, String message, Bundle extras);
 
+    /**
+     * Sends a batch of postMessage requests, queued on the client side by
+     * {@link CustomTabsSession#enablePostMessageBatching}. The default implementation calls
+     * {@link #postMessage} for each message in order and stops at the first failure. Batched
+     * messages are always carried by the binder transaction, never by the postMessage pipe.
+     *
+     * @param sessionToken The unique identifier for the session. Can not be null.
+     * @param messages     The messages that are being sent, in order.
+     * @param extras       Reserved for future use.
+     * @return The number of messages, from the start of the batch, that were accepted. Or, if the
+     * first message wasn't, the {@code RESULT_FAILURE_*} constant it failed with.
+     */
+    protected int postMessages(
+            CustomTabsSessionToken sessionToken, List<String> messages, Bundle extras) {
+        for (int i = 0; i < messages.size(); i++) {
+            int result = postMessage(sessionToken, messages.get(i), extras);
+            if (result != RESULT_SUCCESS) return i == 0 ? result : i;
+        }
+        return messages.size();
+    }
+
     /**
      * Request to validate a relationship between the application and an origin.
      *
@@ -44,6 +44,8 @@ public final class CustomTabsSession {
     private final ICustomTabsService mService;
     private final ICustomTabsCallback mCallback;
     private final ComponentName mComponentName;
+    @Nullable
+    private volatile PostMessageBatcher mPostMessageBatcher;
 
     /**
      * The session ID is represented by {@link PendingIntent}. Other apps cannot
@@ -188,13 +190,45 @@ public final class CustomTabsSession {
      *         asynchronous.
      */
     public boolean requestPostMessageChannel(Uri postMessageOrigin) {
+        return requestPostMessageChannel(postMessageOrigin, false);
+    }
+
+    /**
+     * Sends a request to create a two way postMessage channel between the client and the browser,
+     * see {@link #requestPostMessageChannel(Uri)}.
+     *
+     * With |useLargeMessagePipe|, the client also offers to send large messages through a pipe
+     * rather than inside binder transactions, which are limited in size. If the browser supports
+     * this, it answers with a pipe of its own along with
+     * {@link CustomTabsCallback#onMessageChannelReady}, after which messages over 32K characters
+     * are sent through the pipes in both directions. Smaller messages are always sent as before.
+     * For the browser's pipe to be received, the client must declare a
+     * {@link PostMessageService}.
+     *
+     * @param postMessageOrigin   A origin that the client is requesting to be identified as
+     *                            during the postMessage communication.
+     * @param useLargeMessagePipe Whether to offer the browser to send large messages through a
+     *                            pipe.
+     * @return Whether the implementation accepted the request.
+     */
+    public boolean requestPostMessageChannel(Uri postMessageOrigin, boolean useLargeMessagePipe) {
         Bundle extras = new Bundle();
         addIdToBundle(extras);
+        IBinder session = mCallback.asBinder();
+        if (useLargeMessagePipe) {
+            PostMessagePipe.CLIENT.addReadEnd(session, extras);
+            PostMessagePipe.CLIENT.watch(session, mService.asBinder());
+        }
+        boolean accepted = false;
         try {
-            return mService.requestPostMessageChannelWithExtras(
+            accepted = mService.requestPostMessageChannelWithExtras(
                     mCallback, postMessageOrigin, extras);
+            return accepted;
         } catch (RemoteException e) {
             return false;
+        } finally {
+            PostMessagePipe.closeReadEnd(extras);
+            if (useLargeMessagePipe && !accepted) PostMessagePipe.CLIENT.close(session);
         }
     }
 
@@ -205,15 +239,81 @@ public final class CustomTabsSession {
      * {@link PostMessageServiceConnection#notifyMessageChannelReady(Bundle)} is received on
      * the client side.
      *
+     * If {@link #enablePostMessageBatching} has been called, the message is queued instead of sent
+     * right away, and failures to send it are reported to the {@link PostMessageBatcher.Listener}.
+     *
      * @param message The message that is being sent.
      * @param extras Reserved for future use.
      * @return An integer constant about the postMessage request result. Will return
-      *        {@link CustomTabsService#RESULT_SUCCESS} if successful.
+      *        {@link CustomTabsService#RESULT_SUCCESS} if successful, or
+      *        {@link CustomTabsService#RESULT_FAILURE_QUEUE_FULL} if batching is enabled and too
+      *        many messages are waiting to be sent.
      */
     @Result
     public int postMessage(String message, Bundle extras) {
+        PostMessageBatcher batcher = mPostMessageBatcher;
+        if (batcher != null) {
+            return batcher.offer(message, extras)
+                    ? CustomTabsService.RESULT_SUCCESS
+                    : CustomTabsService.RESULT_FAILURE_QUEUE_FULL;
+        }
+        return postMessageNow(message, extras);
+    }
+
+    /**
+     * Makes {@link #postMessage} queue messages and send them to the browser in batches, which is
+     * much cheaper than a transaction per message when many small messages are sent. Browsers that
+     * don't support batches receive the queued messages one by one.
+     *
+     * @param maxLatencyMs The longest time a message is held back waiting for more messages, see
+     *                     {@link PostMessageBatcher#DEFAULT_MAX_LATENCY_MS}.
+     * @param maxQueueSize The maximum number of messages waiting to be sent, after which
+     *                     {@link #postMessage} fails, see
+     *                     {@link PostMessageBatcher#DEFAULT_MAX_QUEUE_SIZE}.
+     * @param listener Notified when the queue fills up and drains, and of messages that couldn't
+     *                 be sent.
+     * @return The batcher, which can be used to flush the queue and query its depth.
+     * @throws IllegalStateException If batching has already been enabled.
+     */
+    @NonNull
+    public PostMessageBatcher enablePostMessageBatching(long maxLatencyMs, int maxQueueSize,
+            @Nullable PostMessageBatcher.Listener listener) {
+        synchronized (mLock) {
+            if (mPostMessageBatcher != null) {
+                throw new IllegalStateException("postMessage batching is already enabled");
+            }
+            mPostMessageBatcher = new PostMessageBatcher(new PostMessageBatcher.Sender() {
+                @Override
+                public int send(String message, @Nullable Bundle extras) {
+                    return postMessageNow(message, extras == null ? new Bundle() : extras);
+                }
+
+                @Override
+                public int sendBatch(List<String> messages) {
+                    Bundle extras = new Bundle();
+                    addIdToBundle(extras);
+                    synchronized (mLock) {
+                        try {
+                            return mService.postMessages(mCallback, messages, extras);
+                        } catch (RemoteException e) {
+                            return CustomTabsService.RESULT_FAILURE_REMOTE_ERROR;
+                        }
+                    }
+                }
+            }, maxLatencyMs, maxQueueSize, listener);
+            return mPostMessageBatcher;
+        }
+    }
+
+    @Result
+    private int postMessageNow(String message, Bundle extras) {
         addIdToBundle(extras);
         synchronized (mLock) {
+            int frameId = PostMessagePipe.CLIENT.write(mCallback.asBinder(), message);
+            if (frameId >= 0) {
+                extras.putInt(PostMessagePipe.EXTRA_FRAME_ID, frameId);
+                message = "";
+            }
             try {
                 return mService.postMessage(mCallback, message, extras);
             } catch (RemoteException e) {
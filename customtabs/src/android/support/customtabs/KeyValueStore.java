@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static android.support.annotation.RestrictTo.Scope.LIBRARY_GROUP;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.support.annotation.RestrictTo;
+import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A small key-value store for the state the library persists, kept in a single compact binary
+ * file. The whole file is read once per process, after which all reads are served from memory.
+ * Writes update the in-memory state immediately and are written to disk asynchronously, replacing
+ * the file atomically, so a crash never leaves a partially written store behind.
+ *
+ * Supported values are Strings, longs and sets of Strings. Keys are namespaced by their users,
+ * e.g. "TrustedWebActivityVerifiedProvider/Provider".
+ *
+ * @hide
+ */
+@RestrictTo(LIBRARY_GROUP)
+public class KeyValueStore {
+    private static final String TAG = "KeyValueStore";
+
+    private static final String FILE_NAME = "android.support.customtabs.store";
+    private static final int MAGIC = 0x43544b56;  // "CTKV"
+    private static final int VERSION = 1;
+
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_STRING_SET = 2;
+
+    /** Stored under a namespace once its legacy SharedPreferences have been migrated. */
+    private static final String MIGRATED_KEY = "/.migrated";
+
+    @Nullable
+    private static volatile KeyValueStore sInstance;
+
+    private final AtomicFile mFile;
+    /** Values are Strings, Longs or unmodifiable sets of Strings. */
+    private final Map<String, Object> mValues = new ConcurrentHashMap<>();
+    private final AtomicBoolean mWritePending = new AtomicBoolean();
+    private final Object mWriteLock = new Object();
+
+    /**
+     * Returns the store, loading it from disk if this is the first call in this process. So call
+     * it from a background thread if possible. Loading only reads the disk, it never writes.
+     */
+    public static KeyValueStore getInstance(Context context) {
+        KeyValueStore store = sInstance;
+        if (store != null) return store;
+
+        synchronized (KeyValueStore.class) {
+            if (sInstance == null) {
+                sInstance = new KeyValueStore(
+                        new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+            }
+            return sInstance;
+        }
+    }
+
+    @VisibleForTesting
+    KeyValueStore(File file) {
+        mFile = new AtomicFile(file);
+        load();
+    }
+
+    /** Returns the String stored under the key, or null if there's none. */
+    @Nullable
+    public String getString(String key) {
+        Object value = mValues.get(key);
+        return value instanceof String ? (String) value : null;
+    }
+
+    /** Returns the long stored under the key, or |defaultValue| if there's none. */
+    public long getLong(String key, long defaultValue) {
+        Object value = mValues.get(key);
+        return value instanceof Long ? (Long) value : defaultValue;
+    }
+
+    /** Returns the unmodifiable set stored under the key, or null if there's none. */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key) {
+        Object value = mValues.get(key);
+        return value instanceof Set ? (Set<String>) value : null;
+    }
+
+    /**
+     * Returns all the values stored under keys starting with the given prefix, with the prefix
+     * removed from the keys.
+     */
+    public Map<String, Object> getAll(String keyPrefix) {
+        Map<String, Object> values = new HashMap<>();
+        for (Map.Entry<String, Object> entry : mValues.entrySet()) {
+            if (!entry.getKey().startsWith(keyPrefix)) continue;
+            values.put(entry.getKey().substring(keyPrefix.length()), entry.getValue());
+        }
+        return values;
+    }
+
+    /** Stores a String under the key, or removes the key if |value| is null. */
+    public void putString(String key, @Nullable String value) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
+        mValues.put(key, value);
+        scheduleWrite();
+    }
+
+    /** Stores a long under the key. */
+    public void putLong(String key, long value) {
+        mValues.put(key, value);
+        scheduleWrite();
+    }
+
+    /** Stores a copy of the set under the key, or removes the key if |value| is null. */
+    public void putStringSet(String key, @Nullable Set<String> value) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
+        mValues.put(key, Collections.unmodifiableSet(new HashSet<>(value)));
+        scheduleWrite();
+    }
+
+    /** Removes the value stored under the key, if any. */
+    public void remove(String key) {
+        if (mValues.remove(key) != null) scheduleWrite();
+    }
+
+    /**
+     * Copies the contents of a SharedPreferences file the library used before this store existed
+     * into the given namespace, then deletes the file where possible. Does nothing if the
+     * namespace has been migrated already, so only the very first call hits the disk.
+     *
+     * The copied values are written to disk synchronously, and the namespace is only marked as
+     * migrated and the SharedPreferences file only deleted once they have been. If writing fails,
+     * the SharedPreferences file is kept and migrated again in the next process.
+     */
+    @WorkerThread
+    public void migrateFromSharedPreferences(Context context, String prefsName,
+            String namespace) {
+        String migratedKey = namespace + MIGRATED_KEY;
+        if (mValues.containsKey(migratedKey)) return;
+
+        synchronized (this) {
+            if (mValues.containsKey(migratedKey)) return;
+
+            SharedPreferences prefs = context.getSharedPreferences(prefsName, Context.MODE_PRIVATE);
+            for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+                String key = namespace + "/" + entry.getKey();
+                // Values written since the store was created take precedence.
+                if (mValues.containsKey(key)) continue;
+
+                Object value = entry.getValue();
+                if (value instanceof String || value instanceof Long) {
+                    mValues.put(key, value);
+                } else if (value instanceof Set) {
+                    Set<String> strings = new HashSet<>();
+                    for (Object string : (Set<?>) value) strings.add((String) string);
+                    mValues.put(key, Collections.unmodifiableSet(strings));
+                }
+            }
+            if (!flush()) return;
+
+            mValues.put(migratedKey, 1L);
+            if (!flush()) return;
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                context.deleteSharedPreferences(prefsName);
+            }
+        }
+    }
+
+    /**
+     * Synchronously writes the store to disk, including any pending changes.
+     * @return Whether the store was written successfully.
+     */
+    @WorkerThread
+    public boolean flush() {
+        synchronized (mWriteLock) {
+            mWritePending.set(false);
+            return write();
+        }
+    }
+
+    private void scheduleWrite() {
+        // Only one write is queued at a time, it writes whatever the latest values are by then.
+        if (!mWritePending.compareAndSet(false, true)) return;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+            synchronized (mWriteLock) {
+                if (!mWritePending.getAndSet(false)) return;
+                write();
+            }
+        });
+    }
+
+    private void load() {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(mFile.openRead()))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Ignoring store with unknown format");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                byte type = in.readByte();
+                switch (type) {
+                    case TYPE_STRING:
+                        mValues.put(key, in.readUTF());
+                        break;
+                    case TYPE_LONG:
+                        mValues.put(key, in.readLong());
+                        break;
+                    case TYPE_STRING_SET:
+                        int size = in.readInt();
+                        Set<String> strings = new HashSet<>(size);
+                        for (int j = 0; j < size; j++) strings.add(in.readUTF());
+                        mValues.put(key, Collections.unmodifiableSet(strings));
+                        break;
+                    default:
+                        throw new IOException("Unknown value type " + type);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing has been stored yet.
+        } catch (IOException e) {
+            // Keep the values read so far, they were written whole. A migration isn't marked as
+            // done until its values have been written, so those can't be lost this way.
+            Log.w(TAG, "Failed to read the rest of the store", e);
+        }
+    }
+
+    private boolean write() {
+        // Take a snapshot so that concurrent modifications don't change the entry count.
+        Map<String, Object> values = new HashMap<>(mValues);
+
+        FileOutputStream stream = null;
+        try {
+            stream = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(values.size());
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                out.writeUTF(entry.getKey());
+                Object value = entry.getValue();
+                if (value instanceof String) {
+                    out.writeByte(TYPE_STRING);
+                    out.writeUTF((String) value);
+                } else if (value instanceof Long) {
+                    out.writeByte(TYPE_LONG);
+                    out.writeLong((Long) value);
+                } else {
+                    Set<?> strings = (Set<?>) value;
+                    out.writeByte(TYPE_STRING_SET);
+                    out.writeInt(strings.size());
+                    for (Object string : strings) out.writeUTF((String) string);
+                }
+            }
+            out.flush();
+            mFile.finishWrite(stream);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write the store", e);
+            if (stream != null) mFile.failWrite(stream);
+            return false;
+        }
+    }
+}
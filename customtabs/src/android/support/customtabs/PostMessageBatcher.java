@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.GuardedBy;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
+import android.support.customtabs.CustomTabsService.Result;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Queues postMessages and sends them to the other side in batches, so that a burst of small
+ * messages costs a few binder transactions instead of one each. A message is held back for at most
+ * the configured latency, waiting for more messages to send along with it.
+ *
+ * The queue is bounded. Once it's full, new messages are refused rather than sent, and the
+ * {@link Listener} is told when there's room again, so that senders can slow down instead of
+ * failing. Messages are sent in the order they were queued.
+ *
+ * Batches are always sent inside the binder transaction, never through the {@link PostMessagePipe}.
+ * Messages too large to share a batch are sent on their own, and only those can use the pipe.
+ *
+ * Obtained through {@link CustomTabsSession#enablePostMessageBatching} on the client side and
+ * {@link PostMessageServiceConnection#enablePostMessageBatching} on the browser side.
+ */
+public final class PostMessageBatcher {
+    private static final String TAG = "PostMessageBatcher";
+
+    /** The default for the longest time a message is held back waiting for more messages. */
+    public static final long DEFAULT_MAX_LATENCY_MS = 16;
+    /** The default for the maximum number of messages waiting to be sent. */
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 1000;
+
+    /** Binder transactions are limited to 1MB, shared by the process, so batches stay small. */
+    private static final int MAX_BATCH_SIZE = 64;
+    private static final int MAX_BATCH_CHARS = 64 * 1024;
+
+    private static final String TIMER_THREAD_NAME = "PostMessageBatcher";
+    @Nullable
+    private static Handler sTimerHandler;
+
+    /**
+     * Notified of the state of the queue. Called on the thread that queued the message or on a
+     * background thread, so implementations must be thread safe.
+     */
+    public interface Listener {
+        /**
+         * Called when a message has been refused because the queue is full. Further messages will
+         * be refused until {@link #onQueueDrained} is called.
+         */
+        void onQueueFull();
+
+        /** Called when the queue has been drained to half its size after being full. */
+        void onQueueDrained();
+
+        /**
+         * Called when messages that had been queued couldn't be sent.
+         * @param result The reason the messages couldn't be sent, one of the
+         *               {@code CustomTabsService#RESULT_FAILURE_*} constants.
+         * @param messages The messages that weren't sent, in order.
+         */
+        void onMessagesFailed(@Result int result, List<String> messages);
+    }
+
+    /** Does the actual sending. Called on a background thread, one call at a time. */
+    interface Sender {
+        /** Sends a single message, with its extras. */
+        @Result
+        int send(String message, @Nullable Bundle extras);
+
+        /**
+         * Sends the messages in a single transaction.
+         * @return The number of messages that were accepted, which is 0 if the other side doesn't
+         *         support batches, or a {@code CustomTabsService#RESULT_FAILURE_*} constant. A
+         *         Stub generated before batches existed doesn't handle the transaction and leaves
+         *         the reply empty, which the generated proxy reads as 0.
+         */
+        int sendBatch(List<String> messages);
+    }
+
+    private static class Message {
+        final String text;
+        @Nullable
+        final Bundle extras;
+
+        Message(String text, @Nullable Bundle extras) {
+            this.text = text;
+            this.extras = extras;
+        }
+    }
+
+    private final Sender mSender;
+    private final long mMaxLatencyMs;
+    private final int mMaxQueueSize;
+    @Nullable
+    private final Listener mListener;
+    private final Executor mExecutor;
+    private final Handler mTimerHandler;
+    private final Runnable mFlushRunnable = this::flush;
+
+    @GuardedBy("this")
+    private final ArrayDeque<Message> mQueue = new ArrayDeque<>();
+    @GuardedBy("this")
+    private boolean mFlushScheduled;
+    @GuardedBy("this")
+    private boolean mDraining;
+    @GuardedBy("this")
+    private boolean mQueueFull;
+
+    /** Only accessed by the draining task. */
+    private boolean mBatchesUnsupported;
+
+    PostMessageBatcher(Sender sender, long maxLatencyMs, int maxQueueSize,
+            @Nullable Listener listener) {
+        this(sender, maxLatencyMs, maxQueueSize, listener, AsyncTask.THREAD_POOL_EXECUTOR,
+                getTimerHandler());
+    }
+
+    @VisibleForTesting
+    PostMessageBatcher(Sender sender, long maxLatencyMs, int maxQueueSize,
+            @Nullable Listener listener, Executor executor, Handler timerHandler) {
+        if (maxLatencyMs < 0) throw new IllegalArgumentException("Negative latency");
+        if (maxQueueSize <= 0) throw new IllegalArgumentException("Queue size must be positive");
+        mSender = sender;
+        mMaxLatencyMs = maxLatencyMs;
+        mMaxQueueSize = maxQueueSize;
+        mListener = listener;
+        mExecutor = executor;
+        mTimerHandler = timerHandler;
+    }
+
+    private static synchronized Handler getTimerHandler() {
+        if (sTimerHandler == null) {
+            HandlerThread thread = new HandlerThread(TIMER_THREAD_NAME);
+            thread.start();
+            sTimerHandler = new Handler(thread.getLooper());
+        }
+        return sTimerHandler;
+    }
+
+    /**
+     * Queues a message to be sent. Messages with non-empty extras are sent on their own.
+     * @return Whether the message was queued, false if the queue is full.
+     */
+    boolean offer(String message, @Nullable Bundle extras) {
+        synchronized (this) {
+            if (mQueue.size() < mMaxQueueSize) {
+                mQueue.add(new Message(message, extras));
+                if (mDraining) {
+                    // The draining task picks the message up as soon as it's done sending.
+                } else if (mMaxLatencyMs == 0 || mQueue.size() >= MAX_BATCH_SIZE) {
+                    startDrainingLocked();
+                } else if (!mFlushScheduled) {
+                    mFlushScheduled = true;
+                    mTimerHandler.postDelayed(mFlushRunnable, mMaxLatencyMs);
+                }
+                return true;
+            }
+            if (mQueueFull) return false;
+            mQueueFull = true;
+        }
+        if (mListener != null) mListener.onQueueFull();
+        return false;
+    }
+
+    /** Starts sending the queued messages without waiting for the latency to expire. */
+    public synchronized void flush() {
+        if (mDraining || mQueue.isEmpty()) return;
+        startDrainingLocked();
+    }
+
+    /** Returns the number of messages waiting to be sent. */
+    public synchronized int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /** Returns whether messages are being refused because the queue is full. */
+    public synchronized boolean isQueueFull() {
+        return mQueueFull;
+    }
+
+    @GuardedBy("this")
+    private void startDrainingLocked() {
+        if (mFlushScheduled) {
+            mFlushScheduled = false;
+            mTimerHandler.removeCallbacks(mFlushRunnable);
+        }
+        mDraining = true;
+        mExecutor.execute(this::drain);
+    }
+
+    @WorkerThread
+    private void drain() {
+        try {
+            while (true) {
+                List<Message> batch;
+                boolean drained = false;
+                synchronized (this) {
+                    batch = pollBatchLocked();
+                    if (batch.isEmpty()) return;
+                    if (mQueueFull && mQueue.size() <= mMaxQueueSize / 2) {
+                        mQueueFull = false;
+                        drained = true;
+                    }
+                }
+                if (drained && mListener != null) mListener.onQueueDrained();
+                try {
+                    send(batch);
+                } catch (RuntimeException e) {
+                    // Reported as failed, although some of the messages may have been sent.
+                    Log.e(TAG, "Failed to send postMessages", e);
+                    List<String> texts = new ArrayList<>(batch.size());
+                    for (Message message : batch) texts.add(message.text);
+                    notifyFailed(CustomTabsService.RESULT_FAILURE_MESSAGING_ERROR, texts);
+                }
+            }
+        } finally {
+            // Even if the listener throws, later messages have to start a new draining task.
+            synchronized (this) {
+                mDraining = false;
+                if (!mQueue.isEmpty() && !mFlushScheduled) {
+                    mFlushScheduled = true;
+                    mTimerHandler.postDelayed(mFlushRunnable, mMaxLatencyMs);
+                }
+            }
+        }
+    }
+
+    /** Takes the next run of messages that can be sent together. */
+    @GuardedBy("this")
+    private List<Message> pollBatchLocked() {
+        List<Message> batch = new ArrayList<>();
+        int chars = 0;
+        while (!mQueue.isEmpty() && batch.size() < MAX_BATCH_SIZE) {
+            Message message = mQueue.peek();
+            boolean alone = hasExtras(message) || message.text.length() >= MAX_BATCH_CHARS;
+            if (!batch.isEmpty() && (alone || chars + message.text.length() > MAX_BATCH_CHARS)) {
+                break;
+            }
+            batch.add(mQueue.poll());
+            chars += message.text.length();
+            if (alone) break;
+        }
+        return batch;
+    }
+
+    private static boolean hasExtras(Message message) {
+        return message.extras != null && !message.extras.isEmpty();
+    }
+
+    @WorkerThread
+    private void send(List<Message> batch) {
+        if (batch.size() == 1 || mBatchesUnsupported) {
+            sendOneByOne(batch);
+            return;
+        }
+
+        List<String> texts = new ArrayList<>(batch.size());
+        for (Message message : batch) texts.add(message.text);
+        int accepted = mSender.sendBatch(texts);
+        if (accepted == 0) {
+            // The other side predates batches, see Sender#sendBatch.
+            mBatchesUnsupported = true;
+            sendOneByOne(batch);
+        } else if (accepted < 0) {
+            notifyFailed(accepted, texts);
+        } else if (accepted < texts.size()) {
+            notifyFailed(CustomTabsService.RESULT_FAILURE_MESSAGING_ERROR,
+                    texts.subList(accepted, texts.size()));
+        }
+    }
+
+    @WorkerThread
+    private void sendOneByOne(List<Message> batch) {
+        for (Message message : batch) {
+            int result = mSender.send(message.text, message.extras);
+            if (result != CustomTabsService.RESULT_SUCCESS) {
+                notifyFailed(result, Collections.singletonList(message.text));
+            }
+        }
+    }
+
+    private void notifyFailed(@Result int result, @NonNull List<String> messages) {
+        if (mListener != null) mListener.onMessagesFailed(result, new ArrayList<>(messages));
+    }
+}
@@ -0,0 +1,521 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.support.annotation.GuardedBy;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
+import android.support.v4.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Carries large postMessages of a session over a pipe instead of inside binder transactions, which
+ * are limited in size and copy the message several times.
+ *
+ * Each side of a session that supports the pipe creates one and hands the read end to the other
+ * side: the client in the extras of
+ * {@link ICustomTabsService#requestPostMessageChannelWithExtras}, the browser in the extras of
+ * {@link IPostMessageService#onMessageChannelReady}. The browser only answers with a pipe if the
+ * client sent one, so a side only writes into its pipe once it has received the other side's.
+ *
+ * A large message is written into the pipe as a frame with an id, followed by an empty postMessage
+ * over binder that carries the id. The receiver then takes the message from the pipe, so large
+ * messages keep their order relative to small ones, which keep going over binder.
+ *
+ * This only takes large messages out of binder transactions, it doesn't stream them: a message is
+ * encoded whole before it's written and read whole before it's delivered, so it is buffered in full
+ * and copied about three times on the way, to bytes, into the reader's buffer and back to a String.
+ *
+ * The receiver only buffers a bounded number of frames. Once the buffer is full, reading pauses
+ * until frames are taken, which holds up the writer. Frames whose postMessage doesn't arrive in
+ * time, because sending it failed, are dropped, oldest first.
+ */
+class PostMessagePipe {
+    private static final String TAG = "PostMessagePipe";
+
+    /** Extra holding the read end of a pipe, a {@link ParcelFileDescriptor}. */
+    static final String EXTRA_PIPE = "android.support.customtabs.extra.POST_MESSAGE_PIPE";
+    /** Extra holding the id of the frame a postMessage has been written into the pipe as. */
+    static final String EXTRA_FRAME_ID = "android.support.customtabs.extra.POST_MESSAGE_FRAME_ID";
+
+    /** Messages at least this long are sent through the pipe, if there is one. */
+    static final int LARGE_MESSAGE_THRESHOLD_CHARS = 32 * 1024;
+
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    /** The maximum number of frames read ahead of their postMessage. */
+    @VisibleForTesting
+    static final int MAX_BUFFERED_FRAMES = 64;
+    /** The maximum number of bytes read ahead of their postMessage. */
+    private static final int MAX_BUFFERED_BYTES = 2 * MAX_FRAME_SIZE;
+    /**
+     * How long to wait for a frame to be read after its postMessage has arrived, and for frames
+     * to be taken when the buffer is full.
+     */
+    private static final long FRAME_TIMEOUT_MS = 5000;
+    /**
+     * How long to wait for a frame that isn't being read when its postMessage arrives. It was
+     * written before its postMessage was sent, so it's most likely lost if it hasn't arrived yet.
+     */
+    private static final long FRAME_ARRIVAL_TIMEOUT_MS = 100;
+    /** How long to wait for the other side to answer with a pipe, see {@link Registry#watch}. */
+    private static final long ANSWER_TIMEOUT_MS = 60 * 1000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The pipes of the sessions on one side. The two sides are kept apart so that a client and a
+     * browser in the same process don't share pipes.
+     */
+    static class Registry {
+        /** Map from the binder of the session's callback to the session's pipes. */
+        @GuardedBy("mPipes")
+        private final Map<IBinder, PostMessagePipe> mPipes = new ArrayMap<>();
+
+        private final long mFrameTimeoutMs;
+        private final long mFrameArrivalTimeoutMs;
+        private final long mAnswerTimeoutMs;
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        Registry() {
+            this(FRAME_TIMEOUT_MS, FRAME_ARRIVAL_TIMEOUT_MS, ANSWER_TIMEOUT_MS);
+        }
+
+        @VisibleForTesting
+        Registry(long frameTimeoutMs, long frameArrivalTimeoutMs, long answerTimeoutMs) {
+            mFrameTimeoutMs = frameTimeoutMs;
+            mFrameArrivalTimeoutMs = frameArrivalTimeoutMs;
+            mAnswerTimeoutMs = answerTimeoutMs;
+        }
+
+        private PostMessagePipe get(IBinder session, boolean create) {
+            synchronized (mPipes) {
+                PostMessagePipe pipe = mPipes.get(session);
+                if (pipe == null && create) {
+                    pipe = new PostMessagePipe(this, session);
+                    mPipes.put(session, pipe);
+                }
+                return pipe;
+            }
+        }
+
+        /**
+         * Creates a pipe to send the large messages of the session through, replacing any
+         * previous one, and adds its read end to |extras| to be sent to the other side. Call
+         * {@link #closeReadEnd} once they have been sent.
+         */
+        void addReadEnd(IBinder session, Bundle extras) {
+            ParcelFileDescriptor[] fds;
+            try {
+                fds = ParcelFileDescriptor.createPipe();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not create a postMessage pipe", e);
+                return;
+            }
+            get(session, true).setOutput(new DataOutputStream(new BufferedOutputStream(
+                    new ParcelFileDescriptor.AutoCloseOutputStream(fds[1]))));
+            extras.putParcelable(EXTRA_PIPE, fds[0]);
+        }
+
+        /**
+         * Starts reading the large messages of the session from the pipe in |extras|, if the
+         * other side sent one, and removes it from |extras|.
+         * @return Whether there was a pipe.
+         */
+        boolean acceptReadEnd(IBinder session, @Nullable Bundle extras) {
+            if (extras == null) return false;
+            ParcelFileDescriptor fd = extras.getParcelable(EXTRA_PIPE);
+            if (fd == null) return false;
+            extras.remove(EXTRA_PIPE);
+
+            get(session, true).startReading(fd);
+            return true;
+        }
+
+        /**
+         * Closes the pipes of the session once |peer|, the binder the session talks to, dies, or
+         * if the other side doesn't answer with a pipe of its own in time. Call after
+         * {@link #addReadEnd}.
+         */
+        void watch(IBinder session, IBinder peer) {
+            final PostMessagePipe pipe = get(session, false);
+            if (pipe == null) return;
+            if (!pipe.linkToDeath(peer)) {
+                close(session, pipe);
+                return;
+            }
+            mHandler.postDelayed(() -> {
+                if (!pipe.isReading()) close(session, pipe);
+            }, mAnswerTimeoutMs);
+        }
+
+        /** Returns whether the other side of the session has sent a pipe. */
+        boolean hasReadEnd(IBinder session) {
+            PostMessagePipe pipe = get(session, false);
+            return pipe != null && pipe.isReading();
+        }
+
+        /**
+         * Writes |message| into the pipe of the session if it's large enough to be worth it and
+         * both sides have a pipe. Must be called under the same lock as the binder call that
+         * follows, so that the frames are sent in order.
+         * @return The id of the frame to send in {@link #EXTRA_FRAME_ID}, or -1 if the message
+         *         should be sent over binder.
+         */
+        int write(IBinder session, String message) {
+            if (message.length() < LARGE_MESSAGE_THRESHOLD_CHARS) return -1;
+            PostMessagePipe pipe = get(session, false);
+            if (pipe == null || !pipe.isReading()) return -1;
+            return pipe.writeFrame(message);
+        }
+
+        /**
+         * Returns the message that was actually sent: |message| itself, or the one read from the
+         * pipe if |extras| carries a frame id, which is removed from |extras|.
+         * @return The message, or null if it couldn't be read from the pipe.
+         */
+        @Nullable
+        String resolve(IBinder session, String message, @Nullable Bundle extras) {
+            if (extras == null || !extras.containsKey(EXTRA_FRAME_ID)) return message;
+            int frameId = extras.getInt(EXTRA_FRAME_ID);
+            extras.remove(EXTRA_FRAME_ID);
+
+            PostMessagePipe pipe = get(session, false);
+            return pipe == null ? null : pipe.takeFrame(frameId);
+        }
+
+        /** Closes the pipes of the session. */
+        void close(IBinder session) {
+            close(session, null);
+        }
+
+        /** Closes the pipes of the session if they are |expected|, or in any case if null. */
+        private void close(IBinder session, @Nullable PostMessagePipe expected) {
+            PostMessagePipe pipe;
+            synchronized (mPipes) {
+                pipe = mPipes.get(session);
+                if (pipe == null || (expected != null && pipe != expected)) return;
+                mPipes.remove(session);
+            }
+            pipe.unlinkToDeath();
+            pipe.setOutput(null);
+            pipe.stopReading();
+        }
+
+        /**
+         * Closes the pipes of all the sessions whose other side has sent a pipe. Sessions still
+         * waiting for an answer are left to {@link #watch}.
+         */
+        void closeAnswered() {
+            List<IBinder> sessions = new ArrayList<>();
+            synchronized (mPipes) {
+                for (Map.Entry<IBinder, PostMessagePipe> entry : mPipes.entrySet()) {
+                    if (entry.getValue().isReading()) sessions.add(entry.getKey());
+                }
+            }
+            for (IBinder session : sessions) close(session);
+        }
+    }
+
+    private static class Frame {
+        final String message;
+        final int size;
+
+        Frame(String message, int size) {
+            this.message = message;
+            this.size = size;
+        }
+    }
+
+    /** The pipes of {@link CustomTabsSession}s, on the client side. */
+    static final Registry CLIENT = new Registry();
+    /** The pipes of {@link CustomTabsSessionToken}s, on the browser side. */
+    static final Registry BROWSER = new Registry();
+
+    private final Registry mRegistry;
+    private final IBinder mSession;
+
+    // Separate locks, so that a write blocked on a full pipe doesn't hold up reading.
+    private final Object mWriteLock = new Object();
+    private final Object mReadLock = new Object();
+
+    @GuardedBy("mWriteLock")
+    @Nullable
+    private DataOutputStream mOutput;
+    @GuardedBy("mWriteLock")
+    private int mNextFrameId;
+
+    /** Frames read from the pipe, by id. Null if the other side hasn't sent a pipe. */
+    @GuardedBy("mReadLock")
+    @Nullable
+    private SparseArray<Frame> mFrames;
+    /** The total size of {@link #mFrames}. */
+    @GuardedBy("mReadLock")
+    private int mBufferedBytes;
+    /** The id of the last frame taken or skipped, frames up to it won't be read anymore. */
+    @GuardedBy("mReadLock")
+    private int mLastTakenFrameId;
+    /** The id of the frame whose bytes are being read, or -1 if none is. */
+    @GuardedBy("mReadLock")
+    private int mReadingFrameId = -1;
+
+    @GuardedBy("this")
+    @Nullable
+    private IBinder mPeer;
+    @GuardedBy("this")
+    @Nullable
+    private IBinder.DeathRecipient mDeathRecipient;
+
+    private PostMessagePipe(Registry registry, IBinder session) {
+        mRegistry = registry;
+        mSession = session;
+    }
+
+    /** Closes this process' copy of the read end added by {@link Registry#addReadEnd}, if any. */
+    static void closeReadEnd(@Nullable Bundle extras) {
+        if (extras == null) return;
+        ParcelFileDescriptor fd = extras.getParcelable(EXTRA_PIPE);
+        if (fd == null) return;
+        extras.remove(EXTRA_PIPE);
+        try {
+            fd.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+
+    private synchronized boolean linkToDeath(IBinder peer) {
+        unlinkToDeath();
+        IBinder.DeathRecipient deathRecipient = () -> mRegistry.close(mSession, this);
+        try {
+            peer.linkToDeath(deathRecipient, 0);
+        } catch (RemoteException e) {
+            return false;
+        }
+        mPeer = peer;
+        mDeathRecipient = deathRecipient;
+        return true;
+    }
+
+    private synchronized void unlinkToDeath() {
+        if (mPeer == null) return;
+        mPeer.unlinkToDeath(mDeathRecipient, 0);
+        mPeer = null;
+        mDeathRecipient = null;
+    }
+
+    private void setOutput(@Nullable DataOutputStream output) {
+        synchronized (mWriteLock) {
+            closeOutputLocked();
+            mOutput = output;
+            mNextFrameId = 0;
+        }
+    }
+
+    @GuardedBy("mWriteLock")
+    private void closeOutputLocked() {
+        if (mOutput == null) return;
+        try {
+            mOutput.close();
+        } catch (IOException e) {
+            // The other side is gone already.
+        }
+        mOutput = null;
+    }
+
+    private int writeFrame(String message) {
+        byte[] bytes = message.getBytes(UTF_8);
+        synchronized (mWriteLock) {
+            if (mOutput == null) return -1;
+            int frameId = mNextFrameId++;
+            try {
+                mOutput.writeInt(frameId);
+                mOutput.writeInt(bytes.length);
+                mOutput.write(bytes);
+                mOutput.flush();
+                return frameId;
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write to the postMessage pipe", e);
+                closeOutputLocked();
+                return -1;
+            }
+        }
+    }
+
+    private boolean isReading() {
+        synchronized (mReadLock) {
+            return mFrames != null;
+        }
+    }
+
+    private void startReading(ParcelFileDescriptor fd) {
+        SparseArray<Frame> frames = new SparseArray<>();
+        synchronized (mReadLock) {
+            mFrames = frames;
+            mBufferedBytes = 0;
+            mLastTakenFrameId = -1;
+            mReadingFrameId = -1;
+            mReadLock.notifyAll();
+        }
+        Thread thread = new Thread(() -> read(fd, frames), TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void stopReading() {
+        synchronized (mReadLock) {
+            mFrames = null;
+            mReadLock.notifyAll();
+        }
+    }
+
+    /** Reads frames until the other side closes the pipe. */
+    @WorkerThread
+    private void read(ParcelFileDescriptor fd, SparseArray<Frame> frames) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new ParcelFileDescriptor.AutoCloseInputStream(fd)))) {
+            while (true) {
+                int frameId = in.readInt();
+                int size = in.readInt();
+                if (size < 0 || size > MAX_FRAME_SIZE) throw new IOException("Bad frame size");
+                if (!awaitRoom(frames, size)) return;
+                setReadingFrameId(frames, frameId);
+                byte[] bytes = new byte[size];
+                in.readFully(bytes);
+                synchronized (mReadLock) {
+                    if (mFrames != frames) return;
+                    mReadingFrameId = -1;
+                    mReadLock.notifyAll();
+                    if (frameId <= mLastTakenFrameId) continue;
+                    frames.put(frameId, new Frame(new String(bytes, UTF_8), size));
+                    mBufferedBytes += size;
+                    mReadLock.notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            // The pipe has been closed, or is broken. Either way the session is over.
+        }
+        synchronized (mReadLock) {
+            if (mFrames != frames) return;
+        }
+        mRegistry.close(mSession, this);
+    }
+
+    private void setReadingFrameId(SparseArray<Frame> frames, int frameId) {
+        synchronized (mReadLock) {
+            if (mFrames != frames) return;
+            mReadingFrameId = frameId;
+            // Lets takers waiting for this frame know that it's on the way.
+            mReadLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until a frame of the given size fits into the buffer. Frames that aren't taken in time
+     * are dropped, oldest first, as their postMessage will most likely never arrive.
+     * @return Whether to carry on reading, false if the pipe has been closed.
+     */
+    @WorkerThread
+    private boolean awaitRoom(SparseArray<Frame> frames, int size) {
+        synchronized (mReadLock) {
+            long deadline = SystemClock.uptimeMillis() + mRegistry.mFrameTimeoutMs;
+            while (mFrames == frames && frames.size() > 0 && (frames.size() >= MAX_BUFFERED_FRAMES
+                    || mBufferedBytes + size > MAX_BUFFERED_BYTES)) {
+                long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    Log.w(TAG, "Dropping a postMessage frame that was never taken");
+                    mBufferedBytes -= frames.valueAt(0).size;
+                    frames.removeAt(0);
+                    continue;
+                }
+                try {
+                    mReadLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return mFrames == frames;
+        }
+    }
+
+    /**
+     * Takes the frame with the given id. Only waits for it as long as it, or a frame before it, is
+     * being read, otherwise gives up after a short while, so binder threads aren't held up by
+     * frames that won't arrive.
+     */
+    @Nullable
+    private String takeFrame(int frameId) {
+        long deadline = SystemClock.uptimeMillis() + mRegistry.mFrameTimeoutMs;
+        long arrivalDeadline = SystemClock.uptimeMillis() + mRegistry.mFrameArrivalTimeoutMs;
+        synchronized (mReadLock) {
+            // The frame has been dropped already, or was never sent.
+            if (mFrames == null || frameId <= mLastTakenFrameId) return null;
+            // Frames are taken in order, the ones before are from postMessages that failed.
+            // Dropping them first makes room for the reading thread to get to this one.
+            dropFramesLocked(frameId - 1);
+            while (mFrames != null && mFrames.indexOfKey(frameId) < 0) {
+                long now = SystemClock.uptimeMillis();
+                if (mReadingFrameId != -1 && mReadingFrameId <= frameId) {
+                    // The reader is making progress, give it until the next frame to get here.
+                    arrivalDeadline = now + mRegistry.mFrameArrivalTimeoutMs;
+                }
+                long remaining = Math.min(deadline, arrivalDeadline) - now;
+                if (remaining <= 0) break;
+                try {
+                    mReadLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (mFrames == null) return null;
+            Frame frame = mFrames.get(frameId);
+            dropFramesLocked(frameId);
+            return frame == null ? null : frame.message;
+        }
+    }
+
+    /** Drops the frames up to the given id, and any that are read later. */
+    @GuardedBy("mReadLock")
+    private void dropFramesLocked(int lastFrameId) {
+        while (mFrames.size() > 0 && mFrames.keyAt(0) <= lastFrameId) {
+            mBufferedBytes -= mFrames.valueAt(0).size;
+            mFrames.removeAt(0);
+        }
+        mLastTakenFrameId = Math.max(mLastTakenFrameId, lastFrameId);
+        // Makes room for the reading thread.
+        mReadLock.notifyAll();
+    }
+}
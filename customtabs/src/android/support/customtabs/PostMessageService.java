@@ -21,28 +21,54 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.List;
 
 /**
  * A service to receive postMessage related communication from a Custom Tabs provider.
  */
 public class PostMessageService extends Service {
+    private static final String TAG = "PostMessageService";
+
     private IPostMessageService.Stub mBinder = new IPostMessageService.Stub() {
 
         @Override
         public void onMessageChannelReady(
                 ICustomTabsCallback callback, Bundle extras) throws RemoteException {
+            PostMessagePipe.CLIENT.acceptReadEnd(callback.asBinder(), extras);
             callback.onMessageChannelReady(extras);
         }
 
         @Override
         public void onPostMessage(ICustomTabsCallback callback,
                                   String message, Bundle extras) throws RemoteException {
+            message = PostMessagePipe.CLIENT.resolve(callback.asBinder(), message, extras);
+            if (message == null) {
+                Log.w(TAG, "Dropping a postMessage that couldn't be read from its pipe");
+                return;
+            }
             callback.onPostMessage(message, extras);
         }
+
+        @Override
+        public int onPostMessages(ICustomTabsCallback callback,
+                                  List<String> messages, Bundle extras) throws RemoteException {
+            // Batches never go through the pipe, so there is nothing to resolve.
+            for (String message : messages) callback.onPostMessage(message, extras);
+            return messages.size();
+        }
     };
 
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
     }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // No browser is bound anymore, so the sessions that have a pipe are over.
+        PostMessagePipe.CLIENT.closeAnswered();
+    }
 }
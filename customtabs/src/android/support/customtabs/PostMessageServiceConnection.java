@@ -23,8 +23,17 @@ import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.support.annotation.GuardedBy;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * A {@link ServiceConnection} for Custom Tabs providers to use while connecting to a
  * {@link PostMessageService} on the client side.
@@ -32,13 +41,57 @@ import android.util.Log;
 public class PostMessageServiceConnection implements PostMessageBackend, ServiceConnection {
     private static final String TAG = "PostMessageServConn";
 
+    /** The default for the maximum number of messages held while connecting to the client. */
+    public static final int DEFAULT_MAX_PENDING_MESSAGES = 100;
+
+    /** A postMessage or channel ready notification made while connecting to the client. */
+    private static class PendingCall {
+        final boolean isChannelReady;
+        @Nullable
+        final String message;
+        @Nullable
+        final Bundle extras;
+        final long queuedTime = SystemClock.elapsedRealtime();
+
+        PendingCall(boolean isChannelReady, @Nullable String message, @Nullable Bundle extras) {
+            this.isChannelReady = isChannelReady;
+            this.message = message;
+            this.extras = extras;
+        }
+    }
+
+    // Guards the connection state, binder calls are made outside of it.
     private final Object mLock = new Object();
+    // Keeps large messages in the order their frames are written into the pipe.
+    private final Object mPipeLock = new Object();
     private final ICustomTabsCallback mSessionBinder;
-    private IPostMessageService mService;
+    // Only published once the calls queued while connecting have been delivered.
+    private final AtomicReference<IPostMessageService> mService = new AtomicReference<>();
     private String mPackageName;
     // Indicates that a message channel has been opened. We're ready to post messages once this is
     // true and we've connected to the {@link PostMessageService}.
-    private boolean mMessageChannelCreated;
+    private final AtomicBoolean mMessageChannelCreated = new AtomicBoolean();
+    @Nullable
+    private volatile PostMessageBatcher mBatcher;
+
+    @GuardedBy("mLock")
+    private boolean mBindRequested;
+    // Calls made between binding to the service and being connected to it, in order.
+    @GuardedBy("mLock")
+    private final ArrayDeque<PendingCall> mPendingCalls = new ArrayDeque<>();
+    @GuardedBy("mLock")
+    private int mPendingMessageCount;
+    @GuardedBy("mLock")
+    private int mMaxPendingMessages = DEFAULT_MAX_PENDING_MESSAGES;
+    // Whether the last connection delivered a queued channel ready notification.
+    @GuardedBy("mLock")
+    private boolean mChannelReadyDelivered;
+    @GuardedBy("mLock")
+    private long mDroppedMessageCount;
+    @GuardedBy("mLock")
+    private long mDelayedMessageCount;
+    @GuardedBy("mLock")
+    private long mTotalMessageDelayMs;
 
     public PostMessageServiceConnection(CustomTabsSessionToken session) {
         mSessionBinder = ICustomTabsCallback.Stub.asInterface(session.getCallbackBinder());
@@ -67,6 +120,9 @@ public class PostMessageServiceConnection implements PostMessageBackend, Service
         if (!success) {
             Log.w(TAG, "Could not bind to PostMessageService in client.");
         }
+        synchronized (mLock) {
+            mBindRequested = success;
+        }
         return success;
     }
 
@@ -79,33 +135,144 @@ public class PostMessageServiceConnection implements PostMessageBackend, Service
         return bindSessionToPostMessageService(appContext, mPackageName);
     }
 
-    private boolean isBoundToService() {
-        return mService != null;
-    }
-
     /**
      * Unbinds this service connection from the given context.
      * @param context The context to be unbound from.
      */
     public void unbindFromContext(Context context) {
-        if (isBoundToService()) {
-            context.unbindService(this);
-            mService = null;
+        boolean bound;
+        synchronized (mLock) {
+            bound = mService.getAndSet(null) != null || mBindRequested;
+            mBindRequested = false;
+            mDroppedMessageCount += mPendingMessageCount;
+            mPendingMessageCount = 0;
+            mPendingCalls.clear();
         }
+        if (bound) context.unbindService(this);
     }
 
     @Override
     public final void onServiceConnected(ComponentName name, IBinder service) {
-        mService = IPostMessageService.Stub.asInterface(service);
+        drainPendingCalls(IPostMessageService.Stub.asInterface(service));
         onPostMessageServiceConnected();
     }
 
     @Override
     public final void onServiceDisconnected(ComponentName name) {
-        mService = null;
+        synchronized (mLock) {
+            mService.set(null);
+            mChannelReadyDelivered = false;
+        }
         onPostMessageServiceDisconnected();
     }
 
+    /**
+     * Sets the maximum number of messages held while connecting to the {@link PostMessageService},
+     * after which {@link #postMessage} fails. Defaults to {@link #DEFAULT_MAX_PENDING_MESSAGES}.
+     */
+    public void setMaxPendingMessages(int maxPendingMessages) {
+        synchronized (mLock) {
+            mMaxPendingMessages = maxPendingMessages;
+        }
+    }
+
+    /** Returns the number of messages waiting for the connection to the client. */
+    public int getPendingMessageCount() {
+        synchronized (mLock) {
+            return mPendingMessageCount;
+        }
+    }
+
+    /**
+     * Returns the number of messages that were dropped while connecting to the client, because too
+     * many were waiting, sending them failed once connected, or the connection was unbound first.
+     */
+    public long getDroppedMessageCount() {
+        synchronized (mLock) {
+            return mDroppedMessageCount;
+        }
+    }
+
+    /** Returns the number of messages that were delivered after waiting for the connection. */
+    public long getDelayedMessageCount() {
+        synchronized (mLock) {
+            return mDelayedMessageCount;
+        }
+    }
+
+    /** Returns the average time delayed messages waited for the connection, or 0 if none did. */
+    public long getAverageMessageDelayMs() {
+        synchronized (mLock) {
+            return mDelayedMessageCount == 0 ? 0 : mTotalMessageDelayMs / mDelayedMessageCount;
+        }
+    }
+
+    /**
+     * Returns whether the service has been bound to, but isn't connected yet or the calls queued
+     * in the meantime are still being delivered.
+     */
+    @GuardedBy("mLock")
+    private boolean isConnectingLocked() {
+        return mBindRequested && mService.get() == null;
+    }
+
+    /**
+     * Queues the call until the service is connected.
+     * @return Whether the call was queued, false if too many messages are queued already.
+     */
+    @GuardedBy("mLock")
+    private boolean queueLocked(PendingCall call) {
+        if (!call.isChannelReady) {
+            if (mPendingMessageCount >= mMaxPendingMessages) {
+                mDroppedMessageCount++;
+                return false;
+            }
+            mPendingMessageCount++;
+        }
+        mPendingCalls.add(call);
+        return true;
+    }
+
+    /**
+     * Delivers the calls queued while connecting, in order, then publishes the service. Until
+     * then, new calls keep being queued, so they can't overtake the queued ones. The service isn't
+     * published if the connection has been unbound in the meantime.
+     */
+    private void drainPendingCalls(IPostMessageService service) {
+        boolean channelReadyDelivered = false;
+        long delayedCount = 0;
+        long totalDelayMs = 0;
+        long droppedCount = 0;
+        while (true) {
+            PendingCall call;
+            synchronized (mLock) {
+                call = mPendingCalls.poll();
+                if (call == null) {
+                    // Otherwise a later unbind would see a live service and unbind again.
+                    if (mBindRequested) {
+                        mService.set(service);
+                        mChannelReadyDelivered = channelReadyDelivered;
+                    }
+                    mDelayedMessageCount += delayedCount;
+                    mTotalMessageDelayMs += totalDelayMs;
+                    mDroppedMessageCount += droppedCount;
+                    return;
+                }
+                if (!call.isChannelReady) mPendingMessageCount--;
+            }
+
+            if (call.isChannelReady) {
+                channelReadyDelivered |= notifyMessageChannelReadyInternal(service, call.extras);
+            } else if (postMessageNow(service, call.message, call.extras)
+                    == CustomTabsService.RESULT_SUCCESS) {
+                delayedCount++;
+                totalDelayMs += SystemClock.elapsedRealtime() - call.queuedTime;
+            } else {
+                droppedCount++;
+            }
+        }
+    }
+
     @Override
     public final boolean onNotifyMessageChannelReady(Bundle extras) {
         return notifyMessageChannelReady(extras);
@@ -114,12 +281,22 @@ public class PostMessageServiceConnection implements PostMessageBackend, Service
     /**
      * Records that the message channel has been created and calls through to {@link
      * #notifyMessageChannelReadyInternal}, which will notify the service if it's connected.
+     * If the {@link PostMessageService} is still being connected to, the notification is queued
+     * and delivered, in order with queued messages, once connected.
+     *
      * @param extras Unused.
-     * @return Whether the notification was sent successfully.
+     * @return Whether the notification was sent successfully, or queued to be.
      */
     public final boolean notifyMessageChannelReady(Bundle extras) {
-        mMessageChannelCreated = true;
-        return notifyMessageChannelReadyInternal(extras);
+        mMessageChannelCreated.set(true);
+        IPostMessageService service = mService.get();
+        if (service == null) {
+            synchronized (mLock) {
+                if (isConnectingLocked()) return queueLocked(new PendingCall(true, null, extras));
+                service = mService.get();
+            }
+        }
+        return notifyMessageChannelReadyInternal(service, extras);
     }
 
     /**
@@ -129,16 +306,32 @@ public class PostMessageServiceConnection implements PostMessageBackend, Service
      * called when the browser binds to the client side {@link PostMessageService} and also readies
      * a connection to the web frame.
      *
+     * @param service The service to notify, or null if it isn't connected.
      * @param extras Reserved for future use.
      * @return Whether the notification was sent to the remote successfully.
      */
-    private final boolean notifyMessageChannelReadyInternal(Bundle extras) {
-        if (!isBoundToService()) return false;
-        synchronized (mLock) {
+    private final boolean notifyMessageChannelReadyInternal(
+            @Nullable IPostMessageService service, Bundle extras) {
+        if (service == null) return false;
+        if (!PostMessagePipe.BROWSER.hasReadEnd(mSessionBinder.asBinder())) {
+            try {
+                service.onMessageChannelReady(mSessionBinder, extras);
+            } catch (RemoteException e) {
+                return false;
+            }
+            return true;
+        }
+
+        // The client sends large messages through a pipe, answer with one of our own.
+        extras = extras == null ? new Bundle() : new Bundle(extras);
+        synchronized (mPipeLock) {
+            PostMessagePipe.BROWSER.addReadEnd(mSessionBinder.asBinder(), extras);
             try {
-                mService.onMessageChannelReady(mSessionBinder, extras);
+                service.onMessageChannelReady(mSessionBinder, extras);
             } catch (RemoteException e) {
                 return false;
+            } finally {
+                PostMessagePipe.closeReadEnd(extras);
             }
         }
         return true;
@@ -154,20 +347,102 @@ public class PostMessageServiceConnection implements PostMessageBackend, Service
      * {@link CustomTabsSession} has sent a postMessage. If postMessage() is called from a single
      * thread, then the messages will be posted in the same order.
      *
+     * If the {@link PostMessageService} is still being connected to, up to
+     * {@link #setMaxPendingMessages} messages are queued and sent once connected.
+     *
+     * If {@link #enablePostMessageBatching} has been called, the message is queued instead of sent
+     * right away, and failures to send it are reported to the {@link PostMessageBatcher.Listener}.
+     *
      * @param message The message sent.
      * @param extras Reserved for future use.
-     * @return Whether the postMessage was sent to the remote successfully.
+     * @return Whether the postMessage was sent to the remote successfully, or queued to be.
      */
     public final boolean postMessage(String message, Bundle extras) {
-        if (!isBoundToService()) return false;
+        // Once connected, messages are sent without taking the lock.
+        IPostMessageService service = mService.get();
+        if (service == null) {
+            synchronized (mLock) {
+                if (isConnectingLocked()) {
+                    return queueLocked(new PendingCall(false, message, extras));
+                }
+                service = mService.get();
+            }
+            if (service == null) return false;
+        }
+
+        PostMessageBatcher batcher = mBatcher;
+        if (batcher != null) return batcher.offer(message, extras);
+        return postMessageNow(service, message, extras) == CustomTabsService.RESULT_SUCCESS;
+    }
+
+    /**
+     * Makes {@link #postMessage} queue messages and send them to the client in batches, which is
+     * much cheaper than a transaction per message when many small messages are sent. Clients with
+     * a {@link PostMessageService} that doesn't support batches receive them one by one.
+     *
+     * @param maxLatencyMs The longest time a message is held back waiting for more messages.
+     * @param maxQueueSize The maximum number of messages waiting to be sent, after which
+     *                     {@link #postMessage} fails.
+     * @param listener Notified when the queue fills up and drains, and of messages that couldn't
+     *                 be sent.
+     * @return The batcher, which can be used to flush the queue and query its depth.
+     * @throws IllegalStateException If batching has already been enabled.
+     */
+    @NonNull
+    public final PostMessageBatcher enablePostMessageBatching(long maxLatencyMs,
+            int maxQueueSize, @Nullable PostMessageBatcher.Listener listener) {
         synchronized (mLock) {
-            try {
-                mService.onPostMessage(mSessionBinder, message, extras);
-            } catch (RemoteException e) {
-                return false;
+            if (mBatcher != null) {
+                throw new IllegalStateException("postMessage batching is already enabled");
             }
+            mBatcher = new PostMessageBatcher(new PostMessageBatcher.Sender() {
+                @Override
+                public int send(String message, @Nullable Bundle extras) {
+                    return postMessageNow(mService.get(), message, extras);
+                }
+
+                @Override
+                public int sendBatch(List<String> messages) {
+                    IPostMessageService service = mService.get();
+                    if (service == null) return CustomTabsService.RESULT_FAILURE_REMOTE_ERROR;
+                    try {
+                        return service.onPostMessages(mSessionBinder, messages, null);
+                    } catch (RemoteException e) {
+                        return CustomTabsService.RESULT_FAILURE_REMOTE_ERROR;
+                    }
+                }
+            }, maxLatencyMs, maxQueueSize, listener);
+            return mBatcher;
         }
-        return true;
+    }
+
+    @CustomTabsService.Result
+    private int postMessageNow(@Nullable IPostMessageService service, String message,
+            Bundle extras) {
+        if (service == null) return CustomTabsService.RESULT_FAILURE_REMOTE_ERROR;
+        if (message.length() < PostMessagePipe.LARGE_MESSAGE_THRESHOLD_CHARS) {
+            return sendPostMessage(service, message, extras);
+        }
+
+        synchronized (mPipeLock) {
+            int frameId = PostMessagePipe.BROWSER.write(mSessionBinder.asBinder(), message);
+            if (frameId >= 0) {
+                extras = extras == null ? new Bundle() : extras;
+                extras.putInt(PostMessagePipe.EXTRA_FRAME_ID, frameId);
+                message = "";
+            }
+            return sendPostMessage(service, message, extras);
+        }
+    }
+
+    @CustomTabsService.Result
+    private int sendPostMessage(IPostMessageService service, String message, Bundle extras) {
+        try {
+            service.onPostMessage(mSessionBinder, message, extras);
+        } catch (RemoteException e) {
+            return CustomTabsService.RESULT_FAILURE_REMOTE_ERROR;
+        }
+        return CustomTabsService.RESULT_SUCCESS;
     }
 
     @Override
@@ -179,7 +454,11 @@ public class PostMessageServiceConnection implements PostMessageBackend, Service
      * Called when the {@link PostMessageService} connection is established.
      */
     public void onPostMessageServiceConnected() {
-        if (mMessageChannelCreated) notifyMessageChannelReadyInternal(null);
+        synchronized (mLock) {
+            // Already done if the notification was queued while connecting.
+            if (mChannelReadyDelivered) return;
+        }
+        if (mMessageChannelCreated.get()) notifyMessageChannelReadyInternal(mService.get(), null);
     }
 
     /**
@@ -192,6 +471,6 @@ public class PostMessageServiceConnection implements PostMessageBackend, Service
      * @param context Context to use for unbinding if necessary.
      */
     public void cleanup(Context context) {
-        if (isBoundToService()) unbindFromContext(context);
+        unbindFromContext(context);
     }
 }
@@ -54,8 +54,7 @@ public class BrowserActionItem {
      * @param title The string shown for a custom item.
      * @param action The PendingIntent executed when a custom item is selected
      * @param iconUri The {@link Uri} used to access the icon file. Note: make sure this is
-     * generated from {@link BrowserServiceFileProvider.generateUri(Context, Bitmap, String,
-     * int, List<ResolveInfo>)}.
+     * generated from {@link BrowserServiceFileProvider#generateUri(Context, Bitmap)}.
      */
     /** @hide */
     @RestrictTo(LIBRARY_GROUP)
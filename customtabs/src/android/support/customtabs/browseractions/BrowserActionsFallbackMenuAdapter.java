@@ -38,10 +38,13 @@ import java.util.List;
 class BrowserActionsFallbackMenuAdapter extends BaseAdapter {
     private final List<BrowserActionItem> mMenuItems;
     private final Context mContext;
+    private final int mIconSize;
 
     BrowserActionsFallbackMenuAdapter(List<BrowserActionItem> menuItems, Context context) {
         mMenuItems = menuItems;
         mContext = context;
+        mIconSize = context.getResources().getDimensionPixelSize(
+                R.dimen.browser_actions_menu_item_icon_size);
     }
 
     @Override
@@ -78,26 +81,41 @@ class BrowserActionsFallbackMenuAdapter extends BaseAdapter {
 
         final String titleText = menuItem.getTitle();
         viewHolder.mText.setText(titleText);
+        if (viewHolder.mIconTask != null) {
+            // The row has been recycled, its previous icon is no longer needed.
+            viewHolder.mIconTask.cancel(false);
+            viewHolder.mIconTask = null;
+        }
+        Bitmap cachedIcon = menuItem.getIconUri() == null ? null
+                : BrowserServiceImageReadTask.getCachedBitmap(
+                        menuItem.getIconUri(), mIconSize, mIconSize);
         if (menuItem.getIconId() != 0) {
             Drawable drawable = ResourcesCompat.getDrawable(
                     mContext.getResources(), menuItem.getIconId(), null);
             viewHolder.mIcon.setImageDrawable(drawable);
+        } else if (cachedIcon != null) {
+            viewHolder.mIcon.setVisibility(View.VISIBLE);
+            viewHolder.mIcon.setImageBitmap(cachedIcon);
         } else if (menuItem.getIconUri() != null) {
-            BrowserServiceImageReadTask task =
-                    new BrowserServiceImageReadTask(mContext.getContentResolver()) {
-                        @Override
-                        protected void onBitmapFileReady(Bitmap bitmap) {
-                            // ViewHolder has been reused by other item.
-                            if (!TextUtils.equals(titleText, viewHolder.mText.getText())) return;
-                            if (bitmap != null) {
-                                viewHolder.mIcon.setVisibility(View.VISIBLE);
-                                viewHolder.mIcon.setImageBitmap(bitmap);
-                            } else {
-                                viewHolder.mIcon.setVisibility(View.INVISIBLE);
-                                viewHolder.mIcon.setImageBitmap(null);
-                            }
-                        }
-                    };
+            // Don't show the previous icon of a recycled row while the new one is loading.
+            viewHolder.mIcon.setImageBitmap(null);
+            BrowserServiceImageReadTask task = new BrowserServiceImageReadTask(
+                    mContext.getContentResolver(), mIconSize, mIconSize) {
+                @Override
+                protected void onBitmapFileReady(Bitmap bitmap) {
+                    viewHolder.mIconTask = null;
+                    // ViewHolder has been reused by other item.
+                    if (!TextUtils.equals(titleText, viewHolder.mText.getText())) return;
+                    if (bitmap != null) {
+                        viewHolder.mIcon.setVisibility(View.VISIBLE);
+                        viewHolder.mIcon.setImageBitmap(bitmap);
+                    } else {
+                        viewHolder.mIcon.setVisibility(View.INVISIBLE);
+                        viewHolder.mIcon.setImageBitmap(null);
+                    }
+                }
+            };
+            viewHolder.mIconTask = task;
             task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, menuItem.getIconUri());
         } else {
             viewHolder.mIcon.setImageBitmap(null);
@@ -109,5 +127,7 @@ class BrowserActionsFallbackMenuAdapter extends BaseAdapter {
     private static class ViewHolderItem {
         ImageView mIcon;
         TextView mText;
+        /** The task loading the icon for the row, if it hasn't finished yet. */
+        BrowserServiceImageReadTask mIconTask;
     }
 }
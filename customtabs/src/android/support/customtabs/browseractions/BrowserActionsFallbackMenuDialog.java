@@ -37,6 +37,15 @@ class BrowserActionsFallbackMenuDialog extends Dialog {
     private static final long EXIT_ANIMATION_DURATION_MS = 150;
     private final View mContentView;
 
+    private boolean mEnterAnimationHeld;
+    private boolean mEnterAnimationPending;
+    private final Runnable mReleaseEnterAnimationRunnable = new Runnable() {
+        @Override
+        public void run() {
+            releaseEnterAnimation();
+        }
+    };
+
     BrowserActionsFallbackMenuDialog(Context context, View contentView) {
         super(context, android.support.v7.appcompat.R.style.Theme_AppCompat_Light_Dialog);
         mContentView = contentView;
@@ -46,10 +55,37 @@ class BrowserActionsFallbackMenuDialog extends Dialog {
     public void show() {
         Window dialogWindow = getWindow();
         dialogWindow.setBackgroundDrawable(new ColorDrawable(Color.TRANSPARENT));
-        startAnimation(true);
+        if (mEnterAnimationHeld) {
+            // Keep the content invisible until the animation is released.
+            mContentView.setScaleX(0f);
+            mContentView.setScaleY(0f);
+            mEnterAnimationPending = true;
+        } else {
+            startAnimation(true);
+        }
         super.show();
     }
 
+    /**
+     * Delays the enter animation until {@link #releaseEnterAnimation} is called, but for no
+     * longer than |maxDelayMs|. Must be called before {@link #show}.
+     */
+    void holdEnterAnimation(long maxDelayMs) {
+        mEnterAnimationHeld = true;
+        mContentView.postDelayed(mReleaseEnterAnimationRunnable, maxDelayMs);
+    }
+
+    /** Starts the enter animation held by {@link #holdEnterAnimation}, if it hasn't started. */
+    void releaseEnterAnimation() {
+        if (!mEnterAnimationHeld) return;
+        mEnterAnimationHeld = false;
+        mContentView.removeCallbacks(mReleaseEnterAnimationRunnable);
+        if (mEnterAnimationPending) {
+            mEnterAnimationPending = false;
+            startAnimation(true);
+        }
+    }
+
     @Override
     public boolean onTouchEvent(MotionEvent event) {
         if (event.getAction() == MotionEvent.ACTION_DOWN) {
@@ -61,6 +97,9 @@ class BrowserActionsFallbackMenuDialog extends Dialog {
 
     @Override
     public void dismiss() {
+        mEnterAnimationHeld = false;
+        mEnterAnimationPending = false;
+        mContentView.removeCallbacks(mReleaseEnterAnimationRunnable);
         startAnimation(false);
     }
 
@@ -18,27 +18,40 @@ package android.support.customtabs.browseractions;
 
 import static android.support.annotation.RestrictTo.Scope.LIBRARY_GROUP;
 
+import android.app.Activity;
+import android.app.Application;
 import android.app.PendingIntent;
 import android.app.PendingIntent.CanceledException;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
+import android.content.ContextWrapper;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
 import android.support.annotation.RestrictTo;
+import android.support.annotation.UiThread;
 import android.support.annotation.VisibleForTesting;
 import android.support.customtabs.R;
+import android.support.v4.view.AsyncLayoutInflater;
 import android.support.v4.widget.TextViewCompat;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -56,6 +69,96 @@ class BrowserActionsFallbackMenuUi implements AdapterView.OnItemClickListener {
 
     private static final String TAG = "BrowserActionskMenuUi";
 
+    /** The maximum time the menu is held back for its icons to load. */
+    private static final long ICON_PREFETCH_MAX_WAIT_MS = 150;
+
+    /** The time after which a pre-inflated layout that hasn't been used is dropped. */
+    private static final long PREINFLATED_VIEW_TIMEOUT_MS = 30 * 1000;
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    // The fields below are only accessed on the UI thread.
+    @Nullable
+    private static PreinflatedView sPreinflatedView;
+    private static boolean sPreinflating;
+    private static final Runnable sDropPreinflatedView = new Runnable() {
+        @Override
+        public void run() {
+            if (sPreinflatedView == null) return;
+            sPreinflatedView.release();
+            sPreinflatedView = null;
+        }
+    };
+
+    /**
+     * A layout inflated ahead of time for a Context. The view holds on to the Context, so it is
+     * dropped as soon as the Activity it was inflated for is destroyed, and otherwise after
+     * {@link #PREINFLATED_VIEW_TIMEOUT_MS}.
+     */
+    private static class PreinflatedView implements Application.ActivityLifecycleCallbacks {
+        private final WeakReference<Context> mContext;
+        @Nullable
+        private View mView;
+        @Nullable
+        private Application mApplication;
+
+        PreinflatedView(Context context, View view) {
+            mContext = new WeakReference<>(context);
+            mView = view;
+            Activity activity = getActivity(context);
+            if (activity != null) {
+                mApplication = activity.getApplication();
+                mApplication.registerActivityLifecycleCallbacks(this);
+            }
+        }
+
+        @Nullable
+        View getView(Context context) {
+            return mContext.get() == context ? mView : null;
+        }
+
+        void release() {
+            mView = null;
+            if (mApplication == null) return;
+            mApplication.unregisterActivityLifecycleCallbacks(this);
+            mApplication = null;
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+            if (getActivity(mContext.get()) != activity) return;
+            sHandler.removeCallbacks(sDropPreinflatedView);
+            sDropPreinflatedView.run();
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
+
+        @Override
+        public void onActivityStarted(Activity activity) {}
+
+        @Override
+        public void onActivityResumed(Activity activity) {}
+
+        @Override
+        public void onActivityPaused(Activity activity) {}
+
+        @Override
+        public void onActivityStopped(Activity activity) {}
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+    }
+
+    @Nullable
+    private static Activity getActivity(@Nullable Context context) {
+        while (context instanceof ContextWrapper) {
+            if (context instanceof Activity) return (Activity) context;
+            context = ((ContextWrapper) context).getBaseContext();
+        }
+        return null;
+    }
+
     private final Context mContext;
     private final Uri mUri;
     private final List<BrowserActionItem> mMenuItems;
@@ -64,6 +167,9 @@ class BrowserActionsFallbackMenuUi implements AdapterView.OnItemClickListener {
 
     private BrowserActionsFallbackMenuDialog mBrowserActionsDialog;
 
+    /** The number of icons still being loaded by {@link #prefetchIcons}. */
+    private int mPendingIconCount;
+
     /**
      * @param context The {@link Context} used to show the fallback menu.
      * @param uri The uri which users click to trigger the menu.
@@ -73,6 +179,47 @@ class BrowserActionsFallbackMenuUi implements AdapterView.OnItemClickListener {
         mContext = context;
         mUri = uri;
         mMenuItems = buildFallbackMenuItemList(context, customItems);
+        prefetchIcons();
+    }
+
+    /**
+     * Inflates the layout of the menu on a background thread, so that {@link #displayMenu} only
+     * has to attach it. Does nothing if not called on the UI thread.
+     * @param context The {@link Context} the menu will be shown with.
+     */
+    @UiThread
+    static void preinflate(final Context context) {
+        if (Looper.myLooper() != Looper.getMainLooper()) return;
+        if (sPreinflating) return;
+        if (sPreinflatedView != null && sPreinflatedView.getView(context) != null) return;
+        Activity activity = getActivity(context);
+        if (activity != null && activity.isFinishing()) return;
+
+        sPreinflating = true;
+        new AsyncLayoutInflater(context).inflate(R.layout.browser_actions_context_menu_page, null,
+                new AsyncLayoutInflater.OnInflateFinishedListener() {
+                    @Override
+                    public void onInflateFinished(View view, int resid, ViewGroup parent) {
+                        sPreinflating = false;
+                        sHandler.removeCallbacks(sDropPreinflatedView);
+                        sDropPreinflatedView.run();
+                        Activity activity = getActivity(context);
+                        if (activity != null && activity.isFinishing()) return;
+                        sPreinflatedView = new PreinflatedView(context, view);
+                        sHandler.postDelayed(sDropPreinflatedView, PREINFLATED_VIEW_TIMEOUT_MS);
+                    }
+                });
+    }
+
+    /** Returns the layout pre-inflated for the given Context, if there is one. */
+    @Nullable
+    private static View takePreinflatedView(Context context) {
+        if (sPreinflatedView == null) return null;
+        View view = sPreinflatedView.getView(context);
+        if (view == null) return null;
+        sHandler.removeCallbacks(sDropPreinflatedView);
+        sDropPreinflatedView.run();
+        return view;
     }
 
     /** @hide */
@@ -82,6 +229,34 @@ class BrowserActionsFallbackMenuUi implements AdapterView.OnItemClickListener {
         mMenuUiListener = menuUiListener;
     }
 
+    /**
+     * Starts loading all the icons of the menu in parallel, so that they're in the
+     * {@link BrowserServiceImageReadTask} cache by the time the rows are bound. Rows bound while
+     * their icon is still loading wait for the same read rather than starting another one.
+     */
+    private void prefetchIcons() {
+        int iconSize = mContext.getResources().getDimensionPixelSize(
+                R.dimen.browser_actions_menu_item_icon_size);
+        for (BrowserActionItem item : mMenuItems) {
+            Uri iconUri = item.getIconUri();
+            if (item.getIconId() != 0 || iconUri == null) continue;
+            if (BrowserServiceImageReadTask.getCachedBitmap(iconUri, iconSize, iconSize) != null) {
+                continue;
+            }
+
+            mPendingIconCount++;
+            new BrowserServiceImageReadTask(mContext.getContentResolver(), iconSize, iconSize) {
+                @Override
+                protected void onBitmapFileReady(Bitmap bitmap) {
+                    mPendingIconCount--;
+                    if (mPendingIconCount == 0 && mBrowserActionsDialog != null) {
+                        mBrowserActionsDialog.releaseEnterAnimation();
+                    }
+                }
+            }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, iconUri);
+        }
+    }
+
     private List<BrowserActionItem> buildFallbackMenuItemList(
             Context context, List<BrowserActionItem> customItems) {
         List<BrowserActionItem> fallbackMenuItems = new ArrayList<>();
@@ -126,10 +301,16 @@ class BrowserActionsFallbackMenuUi implements AdapterView.OnItemClickListener {
      * Shows the fallback menu.
      */
     public void displayMenu() {
-        final View view = LayoutInflater.from(mContext).inflate(
-                R.layout.browser_actions_context_menu_page, null);
+        View preinflatedView = takePreinflatedView(mContext);
+        final View view = preinflatedView != null ? preinflatedView
+                : LayoutInflater.from(mContext).inflate(
+                        R.layout.browser_actions_context_menu_page, null);
         mBrowserActionsDialog = new BrowserActionsFallbackMenuDialog(mContext, initMenuView(view));
         mBrowserActionsDialog.setContentView(view);
+        if (mPendingIconCount > 0) {
+            // Let the icons load, so that the menu doesn't appear with empty rows.
+            mBrowserActionsDialog.holdEnterAnimation(ICON_PREFETCH_MAX_WAIT_MS);
+        }
         if (mMenuUiListener != null) {
             mBrowserActionsDialog.setOnShowListener(new DialogInterface.OnShowListener() {
                 @Override
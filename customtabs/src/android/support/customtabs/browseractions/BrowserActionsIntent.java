@@ -16,8 +16,10 @@
 package android.support.customtabs.browseractions;
 
 import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.net.Uri;
@@ -26,6 +28,7 @@ import android.os.Bundle;
 import android.support.annotation.DrawableRes;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.RestrictTo;
 import android.support.annotation.VisibleForTesting;
 import android.support.v4.content.ContextCompat;
@@ -35,7 +38,9 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static android.support.annotation.RestrictTo.Scope.LIBRARY_GROUP;
 /**
@@ -170,6 +175,16 @@ public class BrowserActionsIntent {
 
     private static BrowserActionsFallDialogListener sDialogListenter;
 
+    /**
+     * The handlers of {@link #ACTION_BROWSER_ACTIONS_OPEN}, or null if they haven't been queried
+     * since the last time packages changed.
+     */
+    @Nullable
+    private static volatile List<ResolveInfo> sCachedHandlers;
+    /** Incremented when packages change, so that a query racing with the change isn't cached. */
+    private static final AtomicInteger sPackageChangeCount = new AtomicInteger();
+    private static boolean sPackageChangeReceiverRegistered;
+
     /**
      * Builder class for opening a Browser Actions context menu.
      */
@@ -195,6 +210,10 @@ public class BrowserActionsIntent {
             mType = URL_TYPE_NONE;
             mMenuItems = new ArrayList<>();
             mImageUris = new ArrayList<>();
+            if (getCachedBrowserActionsIntentHandlers(context).isEmpty()) {
+                // The fallback menu is going to be shown, get its layout ready in advance.
+                BrowserActionsFallbackMenuUi.preinflate(context);
+            }
         }
 
         /**
@@ -325,7 +344,7 @@ public class BrowserActionsIntent {
      * @param intent The {@link Intent} holds the setting for Browser Actions menu.
      */
     public static void launchIntent(Context context, Intent intent) {
-        List<ResolveInfo> handlers = getBrowserActionsIntentHandlers(context);
+        List<ResolveInfo> handlers = getCachedBrowserActionsIntentHandlers(context);
         launchIntent(context, intent, handlers);
     }
 
@@ -369,6 +388,42 @@ public class BrowserActionsIntent {
         return pm.queryIntentActivities(intent, PackageManager.MATCH_ALL);
     }
 
+    /**
+     * Same as {@link #getBrowserActionsIntentHandlers}, but only queries the PackageManager the
+     * first time it's called after apps have been installed, updated or removed.
+     * @return An unmodifiable list of the Browser Actions providers.
+     */
+    private static List<ResolveInfo> getCachedBrowserActionsIntentHandlers(Context context) {
+        List<ResolveInfo> handlers = sCachedHandlers;
+        if (handlers != null) return handlers;
+
+        registerPackageChangeReceiverIfNeeded(context);
+        int packageChangeCount = sPackageChangeCount.get();
+        handlers = Collections.unmodifiableList(
+                new ArrayList<>(getBrowserActionsIntentHandlers(context)));
+        if (packageChangeCount == sPackageChangeCount.get()) sCachedHandlers = handlers;
+        return handlers;
+    }
+
+    private static synchronized void registerPackageChangeReceiverIfNeeded(Context context) {
+        if (sPackageChangeReceiverRegistered) return;
+        sPackageChangeReceiverRegistered = true;
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.getApplicationContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                sPackageChangeCount.incrementAndGet();
+                sCachedHandlers = null;
+            }
+        }, filter);
+    }
+
     private static void openFallbackBrowserActionsMenu(Context context, Intent intent) {
         Uri uri = intent.getData();
         int type = intent.getIntExtra(EXTRA_TYPE, URL_TYPE_NONE);
@@ -19,8 +19,6 @@ import android.content.ClipData;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
 import android.content.pm.ResolveInfo;
 import android.database.Cursor;
 import android.graphics.Bitmap;
@@ -29,28 +27,40 @@ import android.os.AsyncTask;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.support.annotation.UiThread;
+import android.support.annotation.VisibleForTesting;
 import android.support.annotation.WorkerThread;
 import android.support.annotation.GuardedBy;
+import android.support.customtabs.KeyValueStore;
 import android.support.v4.content.FileProvider;
 import android.support.v4.util.AtomicFile;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.WeakHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The class to pass images asynchronously between different applications.
- * Call {@link generateUri(Context, Bitmap, String, int, List<String>)} to save the image
+ * Call {@link #generateUri(Context, Bitmap)} to save the image
  * and generate a uri to access the image.
  * To access the image, pass the uri to {@link BrowserServiceImageReadTask}.
  */
@@ -62,7 +72,28 @@ public class BrowserServiceFileProvider extends FileProvider {
     private static final String FILE_SUB_DIR_NAME = "image_provider_images/";
     private static final String FILE_EXTENSION = ".png";
     private static final String CLIP_DATA_LABEL = "image_provider_uris";
-    private static final String LAST_CLEANUP_TIME_KEY = "last_cleanup_time";
+    /** Namespace in {@link KeyValueStore}, the cleanup time used to be in SharedPreferences. */
+    private static final String STORE_NAMESPACE = "BrowserServiceFileProvider";
+    private static final String LAST_CLEANUP_TIME_KEY = STORE_NAMESPACE + "/last_cleanup_time";
+    /**
+     * Prefix of the keys that map the file name in a uri to the file named after the content of
+     * the image, stored as "<creation time>/<file name>".
+     */
+    private static final String ALIAS_KEY_PREFIX = STORE_NAMESPACE + "/alias/";
+    private static final char ALIAS_SEPARATOR = '/';
+
+    /** The default value for {@link #setMaxCacheSize}. */
+    public static final long DEFAULT_MAX_CACHE_SIZE_BYTES = 10 * 1024 * 1024;
+
+    private static volatile long sMaxCacheSize = DEFAULT_MAX_CACHE_SIZE_BYTES;
+
+    /** The maximum time to wait for an image in serialization to become readable as a file. */
+    private static final long FILE_READY_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+    /**
+     * The maximum time a stream waits for the encoder to produce more data, once the image is no
+     * longer queued behind others.
+     */
+    private static final long STREAM_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
 
     // A Set tracks the urls whose images are in serialization.
     @GuardedBy("sLatchMapLock")
@@ -75,9 +106,24 @@ public class BrowserServiceFileProvider extends FileProvider {
      */
     @GuardedBy("sLatchMapLock")
     private static Map<Uri, CountDownLatch> sUriLatchMap = new HashMap<>();
+    /**
+     * Map from uri to the buffer its image is being encoded into, for the images in serialization.
+     */
+    @GuardedBy("sLatchMapLock")
+    private static Map<Uri, ImageStreamBuffer> sStreamBuffers = new HashMap<>();
     private static Object sLatchMapLock = new Object();
+    /** Guards the image index. Not held while images are written, which can take long. */
     private static Object sFileCleanupLock = new Object();
 
+    /** Null until the first time images are saved or read in this process. */
+    @GuardedBy("sFileCleanupLock")
+    private static ImageFileIndex sImageFileIndex;
+    private static final AtomicBoolean sCleanupScheduled = new AtomicBoolean();
+
+    /** A random id for each bitmap that has been registered, which its uris are named after. */
+    @GuardedBy("sBitmapIds")
+    private static final Map<Bitmap, String> sBitmapIds = new WeakHashMap<>();
+
     private static class FileCleanupTask extends AsyncTask<Void, Void, Void> {
         private final WeakReference<Context> mContextRef;
         private static final long IMAGE_RETENTION_DURATION = TimeUnit.DAYS.toMillis(7);
@@ -93,23 +139,15 @@ public class BrowserServiceFileProvider extends FileProvider {
         protected Void doInBackground(Void... params) {
             Context context = mContextRef.get();
             if (context == null) return null;
-            SharedPreferences prefs = context.getSharedPreferences(
-                    context.getPackageName() + AUTHORITY_SUFFIX, Context.MODE_PRIVATE);
-            if (!shouldCleanUp(prefs)) return null;
+            KeyValueStore store = KeyValueStore.getInstance(context);
+            store.migrateFromSharedPreferences(context,
+                    context.getPackageName() + AUTHORITY_SUFFIX, STORE_NAMESPACE);
+            if (!shouldCleanUp(store)) return null;
             synchronized (sFileCleanupLock) {
-                boolean allFilesDeletedSuccessfully = true;
-                File path = new File(context.getFilesDir(), FILE_SUB_DIR);
-                if (!path.exists()) return null;
-                File[] files = path.listFiles();
+                ImageFileIndex index = getImageFileIndexLocked(context);
                 long retentionDate = System.currentTimeMillis() - IMAGE_RETENTION_DURATION;
-                for (File file : files) {
-                    if (!isImageFile(file)) continue;
-                    long lastModified = file.lastModified();
-                    if (lastModified < retentionDate && !file.delete()) {
-                        Log.e(TAG, "Fail to delete image: " + file.getAbsoluteFile());
-                        allFilesDeletedSuccessfully = false;
-                    }
-                }
+                boolean allFilesDeletedSuccessfully = index.removeUnusedSince(retentionDate);
+                removeAliasesLocked(store, index, retentionDate);
                 // If fail to delete some files, kill off clean up task after one day.
                 long lastCleanUpTime;
                 if (allFilesDeletedSuccessfully) {
@@ -118,92 +156,174 @@ public class BrowserServiceFileProvider extends FileProvider {
                     lastCleanUpTime = System.currentTimeMillis() - CLEANUP_REQUIRED_TIME_SPAN
                             + DELETION_FAILED_REATTEMPT_DURATION;
                 }
-                Editor editor = prefs.edit();
-                editor.putLong(LAST_CLEANUP_TIME_KEY, lastCleanUpTime);
-                editor.apply();
+                store.putLong(LAST_CLEANUP_TIME_KEY, lastCleanUpTime);
             }
             return null;
         }
 
-        private boolean isImageFile(File file) {
-            String filename = file.getName();
-            return filename.endsWith("." + FILE_EXTENSION);
+        private boolean shouldCleanUp(KeyValueStore store) {
+            long now = System.currentTimeMillis();
+            long lastCleanup = store.getLong(LAST_CLEANUP_TIME_KEY, -1);
+            if (lastCleanup == -1) {
+                // Start counting from the first run, otherwise cleanup would never happen.
+                store.putLong(LAST_CLEANUP_TIME_KEY, now);
+                return false;
+            }
+            return now > lastCleanup + CLEANUP_REQUIRED_TIME_SPAN;
         }
 
-        private boolean shouldCleanUp(SharedPreferences prefs) {
-            long lastCleanup = prefs.getLong(LAST_CLEANUP_TIME_KEY, System.currentTimeMillis());
-            return System.currentTimeMillis() > lastCleanup + CLEANUP_REQUIRED_TIME_SPAN;
+        /** Removes the aliases of deleted files, and the aliases older than |retentionDate|. */
+        @GuardedBy("sFileCleanupLock")
+        private void removeAliasesLocked(KeyValueStore store, ImageFileIndex index,
+                long retentionDate) {
+            for (Map.Entry<String, Object> alias : store.getAll(ALIAS_KEY_PREFIX).entrySet()) {
+                String value = String.valueOf(alias.getValue());
+                int separator = value.indexOf(ALIAS_SEPARATOR);
+                long creationTime;
+                try {
+                    creationTime = Long.parseLong(value.substring(0, Math.max(separator, 0)));
+                } catch (NumberFormatException e) {
+                    creationTime = 0;
+                }
+                if (creationTime < retentionDate
+                        || !index.contains(value.substring(separator + 1))) {
+                    store.remove(ALIAS_KEY_PREFIX + alias.getKey());
+                }
+            }
         }
     }
 
-    private static class FileSaveTask extends AsyncTask<String, Void, Void> {
-        private final WeakReference<Context> mContextRef;
-        private final String mFilename;
-        private final Bitmap mBitmap;
-        private final Uri mFileUri;
-
-        public FileSaveTask(Context context, String filename, Bitmap bitmap, Uri fileUri) {
-            super();
-            mContextRef = new WeakReference<Context>(context);
-            mFilename = filename;
-            mBitmap = bitmap;
-            mFileUri = fileUri;
+    private static final ImageSavePipeline sSavePipeline =
+            new ImageSavePipeline(new ImageSavePipeline.Delegate() {
+        @Override
+        public boolean needsSaving(ImageSavePipeline.Request request) {
+            // Hashed here rather than in generateUri, as reading all the pixels takes a while.
+            request.storedName = request.contentAddressed
+                    ? computeContentHash(request.bitmap) + FILE_EXTENSION
+                    : request.filename + FILE_EXTENSION;
+            File path = new File(request.context.getFilesDir(), FILE_SUB_DIR);
+            synchronized (sFileCleanupLock) {
+                if (!path.exists() && !path.mkdir()) return false;
+                File img = new File(path, request.storedName);
+                // The same image has been saved before, by this or an earlier process.
+                if (!img.exists()) return true;
+                getImageFileIndexLocked(request.context).recordAccess(img.getName());
+                return false;
+            }
         }
 
         @Override
-        protected Void doInBackground(String... params) {
-            saveFileIfNeededBlocking();
-            return null;
+        public void commit(List<ImageSavePipeline.Request> batch) {
+            // The files are written without holding the lock, so that reads of other images don't
+            // wait for the whole batch. Files that aren't indexed yet are never deleted.
+            Context context = null;
+            List<File> written = new ArrayList<>(batch.size());
+            for (ImageSavePipeline.Request request : batch) {
+                if (request.storedName == null) continue;
+                File img = new File(new File(request.context.getFilesDir(), FILE_SUB_DIR),
+                        request.storedName);
+                if (request.isEncoded()) {
+                    saveFileBlocking(img, request.streamBuffer);
+                    written.add(img);
+                    context = request.context;
+                } else if (!img.exists()) {
+                    continue;
+                }
+                if (request.contentAddressed) {
+                    // Recorded before the request finishes, readers resolve the uri after that.
+                    KeyValueStore.getInstance(request.context).putString(
+                            ALIAS_KEY_PREFIX + request.filename + FILE_EXTENSION,
+                            System.currentTimeMillis() + ALIAS_SEPARATOR + request.storedName);
+                }
+            }
+            if (context == null) return;
+
+            Set<String> names = new HashSet<>();
+            synchronized (sFileCleanupLock) {
+                ImageFileIndex index = getImageFileIndexLocked(context);
+                for (File img : written) {
+                    index.recordWrite(img);
+                    names.add(img.getName());
+                }
+                // Trim once for the whole batch, none of which has been read yet.
+                index.trimToSize(sMaxCacheSize, names);
+            }
         }
 
         @Override
-        protected void onPostExecute(Void result) {
+        public void onFinished(ImageSavePipeline.Request request) {
             // If file is pending for access, notify to read the fileUri.
             synchronized (sLatchMapLock) {
-                if (sUriLatchMap.containsKey(mFileUri)) {
-                    CountDownLatch latch = sUriLatchMap.get(mFileUri);
+                if (sUriLatchMap.containsKey(request.uri)) {
+                    CountDownLatch latch = sUriLatchMap.get(request.uri);
                     latch.countDown();
                 }
-                sFilesInSerialization.remove(mFileUri);
-                sUriLatchMap.remove(mFileUri);
+                sFilesInSerialization.remove(request.uri);
+                sUriLatchMap.remove(request.uri);
+                sStreamBuffers.remove(request.uri);
             }
-            new FileCleanupTask(mContextRef).executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
+            scheduleCleanup(new WeakReference<>(request.context));
         }
+    });
 
-        private void saveFileBlocking(File img) {
-            FileOutputStream fOut = null;
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
-                AtomicFile atomicFile = new AtomicFile(img);
-                try {
-                    fOut = atomicFile.startWrite();
-                    mBitmap.compress(Bitmap.CompressFormat.PNG, 100, fOut);
-                    fOut.close();
-                    atomicFile.finishWrite(fOut);
-                } catch (IOException e) {
-                    Log.e(TAG, "Fail to save file", e);
-                    atomicFile.failWrite(fOut);
-                }
-            } else {
-                try {
-                    fOut = new FileOutputStream(img);
-                    mBitmap.compress(Bitmap.CompressFormat.PNG, 100, fOut);
-                    fOut.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "Fail to save file", e);
-                }
+    private static void saveFileBlocking(File img, ImageStreamBuffer encodedImage) {
+        FileOutputStream fOut = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
+            AtomicFile atomicFile = new AtomicFile(img);
+            try {
+                fOut = atomicFile.startWrite();
+                encodedImage.writeTo(fOut);
+                atomicFile.finishWrite(fOut);
+            } catch (IOException e) {
+                Log.e(TAG, "Fail to save file", e);
+                atomicFile.failWrite(fOut);
+            }
+        } else {
+            try {
+                fOut = new FileOutputStream(img);
+                encodedImage.writeTo(fOut);
+                fOut.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Fail to save file", e);
             }
         }
+    }
 
-        private void saveFileIfNeededBlocking() {
-            if (mContextRef.get() == null) return;
-            File path = new File(mContextRef.get().getFilesDir(), FILE_SUB_DIR);
-            synchronized (sFileCleanupLock) {
-                if (!path.exists() && !path.mkdir()) return;
-                File img = new File(path, mFilename + FILE_EXTENSION);
-                if (!img.exists()) saveFileBlocking(img);
-                img.setLastModified(System.currentTimeMillis());
-            }
+    /** Returns the number of images waiting to be saved. */
+    public static int getSaveQueueDepth() {
+        return sSavePipeline.getQueueDepth();
+    }
+
+    /** Returns the average time it has taken to encode an image in this process, in ms. */
+    public static long getAverageEncodeTimeMs() {
+        return sSavePipeline.getAverageEncodeTimeMs();
+    }
+
+    /**
+     * Sets the maximum total size of the saved images. When it is exceeded, the least recently
+     * saved or read images are deleted. Defaults to {@link #DEFAULT_MAX_CACHE_SIZE_BYTES}.
+     * @param maxSizeBytes The maximum size in bytes.
+     */
+    public static void setMaxCacheSize(long maxSizeBytes) {
+        sMaxCacheSize = maxSizeBytes;
+    }
+
+    @GuardedBy("sFileCleanupLock")
+    private static ImageFileIndex getImageFileIndexLocked(Context context) {
+        if (sImageFileIndex == null) {
+            sImageFileIndex = new ImageFileIndex(
+                    new File(context.getFilesDir(), FILE_SUB_DIR), FILE_EXTENSION);
         }
+        return sImageFileIndex;
+    }
+
+    /**
+     * Runs the {@link FileCleanupTask}. The size limit is enforced on every save, so the
+     * age-based cleanup only needs to happen once per process.
+     */
+    private static void scheduleCleanup(WeakReference<Context> contextRef) {
+        if (!sCleanupScheduled.compareAndSet(false, true)) return;
+        new FileCleanupTask(contextRef).executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
     }
 
     /**
@@ -216,22 +336,93 @@ public class BrowserServiceFileProvider extends FileProvider {
      *                 filename of the bitmap. If it matches with existing file, bitmap will skip
      *                 saving.
      * @return The uri to access the bitmap.
+     * @deprecated Use {@link #generateUri(Context, Bitmap)}, which doesn't rely on the caller to
+     *             tell images apart.
      */
+    @Deprecated
     @UiThread
     public static Uri generateUri(Context context, Bitmap bitmap, String name, int version) {
-        String filename = name + "_" + Integer.toString(version);
+        return generateUri(context, bitmap, name + "_" + Integer.toString(version), false);
+    }
+
+    /**
+     * Request a {@link Uri} used to access the bitmap through the file provider. The uri is named
+     * after the bitmap and its {@link Bitmap#getGenerationId}, so a bitmap that is registered
+     * repeatedly is only saved once. The image is stored in a file named after its content, which
+     * is only written if no bitmap with the same content has been saved before, by any process.
+     * @param context The {@link Context} used to generate the uri, save the bitmap and grant the
+     *                read permission.
+     * @param bitmap The {@link Bitmap} to be saved and access through the file provider.
+     * @return The uri to access the bitmap.
+     */
+    @UiThread
+    public static Uri generateUri(Context context, Bitmap bitmap) {
+        return generateUri(context, bitmap, getFileName(bitmap), true);
+    }
+
+    private static Uri generateUri(Context context, Bitmap bitmap, String filename,
+            boolean contentAddressed) {
         Uri uri = generateUri(context, filename);
-        boolean shouldSaveImage;
+        ImageStreamBuffer streamBuffer = null;
         synchronized (sLatchMapLock) {
-            shouldSaveImage = sFilesInSerialization.add(uri);
+            if (sFilesInSerialization.add(uri)) {
+                streamBuffer = new ImageStreamBuffer();
+                sStreamBuffers.put(uri, streamBuffer);
+            }
         }
-        if (shouldSaveImage) {
-            FileSaveTask fileSaveTask = new FileSaveTask(context, filename, bitmap, uri);
-            fileSaveTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        if (streamBuffer != null) {
+            sSavePipeline.enqueue(new ImageSavePipeline.Request(
+                    context, uri, filename, bitmap, streamBuffer, contentAddressed));
         }
         return uri;
     }
 
+    /** Returns the name in the uri for the current content of the bitmap, without extension. */
+    @VisibleForTesting
+    static String getFileName(Bitmap bitmap) {
+        String id;
+        synchronized (sBitmapIds) {
+            id = sBitmapIds.get(bitmap);
+            if (id == null) {
+                id = UUID.randomUUID().toString();
+                sBitmapIds.put(bitmap, id);
+            }
+        }
+        // The generation id changes whenever the bitmap is modified.
+        return id + "_" + bitmap.getGenerationId();
+    }
+
+    @VisibleForTesting
+    @WorkerThread
+    static String computeContentHash(Bitmap bitmap) {
+        Bitmap readable = bitmap;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && bitmap.getConfig() == Bitmap.Config.HARDWARE) {
+            // The pixels of hardware bitmaps can't be accessed directly.
+            readable = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+        }
+        ByteBuffer pixels = ByteBuffer.allocate(readable.getRowBytes() * readable.getHeight());
+        readable.copyPixelsToBuffer(pixels);
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(ByteBuffer.allocate(8)
+                .putInt(readable.getWidth()).putInt(readable.getHeight()).array());
+        digest.update(String.valueOf(readable.getConfig()).getBytes());
+        digest.update(pixels.array());
+
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hash.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hash.toString();
+    }
+
     private static Uri generateUri(Context context, String filename) {
         String fileName = FILE_SUB_DIR_NAME + filename + FILE_EXTENSION;
         return new Uri.Builder()
@@ -259,13 +450,32 @@ public class BrowserServiceFileProvider extends FileProvider {
         intent.setClipData(clipData);
     }
 
+    /**
+     * Opens the image file. If the image is still being saved and it is opened for reading, a pipe
+     * is returned instead, through which the image is streamed as it is being encoded.
+     */
     @Override
     @WorkerThread
     public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if ("r".equals(mode)) {
+            ImageStreamBuffer streamBuffer;
+            synchronized (sLatchMapLock) {
+                streamBuffer = sStreamBuffers.get(uri);
+            }
+            if (streamBuffer != null) {
+                sSavePipeline.prioritize(uri);
+                return openPipe(uri, streamBuffer);
+            }
+        }
+
         if (!blockUntilFileReady(uri)) {
-            throw new FileNotFoundException("File open is interrupted");
+            throw new FileNotFoundException("File is not ready: " + uri);
+        }
+        Uri fileUri = resolveUri(uri);
+        synchronized (sFileCleanupLock) {
+            getImageFileIndexLocked(getContext()).recordAccess(fileUri.getLastPathSegment());
         }
-        return super.openFile(uri, mode);
+        return super.openFile(fileUri, mode);
     }
 
     @Override
@@ -273,13 +483,79 @@ public class BrowserServiceFileProvider extends FileProvider {
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
         if (!blockUntilFileReady(uri)) return null;
-        return super.query(uri, projection, selection, selectionArgs, sortOrder);
+        return super.query(resolveUri(uri), projection, selection, selectionArgs, sortOrder);
+    }
+
+    /**
+     * Returns the uri of the file the image is stored in, which is named after its content unless
+     * the uri was generated with a name and version.
+     */
+    @WorkerThread
+    private Uri resolveUri(Uri uri) {
+        String alias = KeyValueStore.getInstance(getContext())
+                .getString(ALIAS_KEY_PREFIX + uri.getLastPathSegment());
+        if (alias == null) return uri;
+        String path = uri.getPath();
+        return uri.buildUpon()
+                .path(path.substring(0, path.lastIndexOf('/') + 1)
+                        + alias.substring(alias.indexOf(ALIAS_SEPARATOR) + 1))
+                .build();
+    }
+
+    private ParcelFileDescriptor openPipe(final Uri uri, final ImageStreamBuffer streamBuffer)
+            throws FileNotFoundException {
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Failed to create a pipe for " + uri);
+        }
+        final File directory = new File(getContext().getFilesDir(), FILE_SUB_DIR);
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+            ParcelFileDescriptor writeSide = pipe[1];
+            // The descriptor, rather than the stream, owns the write side of the pipe.
+            OutputStream out = new FileOutputStream(writeSide.getFileDescriptor());
+            try {
+                if (!streamBuffer.copyTo(out, STREAM_TIMEOUT_MS)) {
+                    // The image had been saved before, so it wasn't encoded again.
+                    copyFile(new File(directory, resolveUri(uri).getLastPathSegment()), out);
+                }
+                writeSide.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Fail to stream image: " + uri, e);
+                closeWithError(writeSide, e.getMessage());
+            }
+        });
+        return pipe[0];
+    }
+
+    private static void copyFile(File file, OutputStream out) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+        }
+    }
+
+    private static void closeWithError(ParcelFileDescriptor descriptor, String message) {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                // Lets the reader tell a failure apart from the end of the image.
+                descriptor.closeWithError(message);
+            } else {
+                descriptor.close();
+            }
+        } catch (IOException e) {
+            // Nothing left to do.
+        }
     }
 
     private boolean blockUntilFileReady(Uri fileUri) {
         CountDownLatch latch;
         synchronized (sLatchMapLock) {
             if (!sFilesInSerialization.contains(fileUri)) return true;
+            sSavePipeline.prioritize(fileUri);
             if (sUriLatchMap.containsKey(fileUri)) {
                 latch = sUriLatchMap.get(fileUri);
             } else {
@@ -288,7 +564,10 @@ public class BrowserServiceFileProvider extends FileProvider {
             }
         }
         try {
-            latch.await();
+            if (!latch.await(FILE_READY_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.e(TAG, "Timed out waiting for file: " + fileUri.toString());
+                return false;
+            }
         } catch (InterruptedException e) {
             Log.e(TAG, "Interrupt waiting for file: " + fileUri.toString());
             return false;
@@ -21,10 +21,19 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.ParcelFileDescriptor;
+import android.support.annotation.GuardedBy;
+import android.support.annotation.Nullable;
+import android.support.annotation.UiThread;
+import android.support.v4.util.LruCache;
 import android.util.Log;
 
-import java.io.FileDescriptor;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The {@link AsyncTask} handles:
@@ -34,24 +43,133 @@ import java.io.IOException;
  * To use this class:
  *  1. Override handlePreLoadingFallback() to inflate a fallback UI when image is not ready.
  *  2. Override onBitmapFileReady(Bitmap) to update the UI.
+ *
+ * Decoded images are kept in a memory cache shared by all tasks, check {@link #getCachedBitmap}
+ * before starting a task. A task started while another one is reading the same image waits for it
+ * instead of reading the image again. If a target size is given, images are decoded sampled down
+ * to it.
  */
 public abstract class BrowserServiceImageReadTask extends AsyncTask<Uri, Void, Bitmap> {
     private static final String TAG = "BrowserServiceImageReadTask";
+    private static final int BITMAP_CACHE_SIZE_BYTES = 4 * 1024 * 1024;
+    /**
+     * How long to wait for another task reading the same image before reading it as well, so that
+     * a stalled read doesn't hold up a thread of the shared executor for good.
+     */
+    private static final long PENDING_READ_TIMEOUT_MS = 2000;
+
+    /**
+     * Decoded images by uri and target size. The uris generated by
+     * {@link BrowserServiceFileProvider} change whenever the image does, so entries never go
+     * stale.
+     */
+    private static final LruCache<String, Bitmap> sBitmapCache =
+            new LruCache<String, Bitmap>(BITMAP_CACHE_SIZE_BYTES) {
+                @Override
+                protected int sizeOf(String key, Bitmap value) {
+                    return value.getByteCount();
+                }
+            };
+
+    /** The reads in progress by cache key, counted down once the image is in the cache. */
+    @GuardedBy("sPendingReads")
+    private static final Map<String, CountDownLatch> sPendingReads = new HashMap<>();
+
     private final ContentResolver mResolver;
+    private final int mReqWidth;
+    private final int mReqHeight;
 
     public BrowserServiceImageReadTask(ContentResolver resolver) {
+        this(resolver, 0, 0);
+    }
+
+    /**
+     * @param resolver The {@link ContentResolver} to read the image with.
+     * @param reqWidth The width the image will be displayed at, or 0 to decode at full size.
+     * @param reqHeight The height the image will be displayed at, or 0 to decode at full size.
+     */
+    public BrowserServiceImageReadTask(ContentResolver resolver, int reqWidth, int reqHeight) {
         super();
         mResolver = resolver;
+        mReqWidth = reqWidth;
+        mReqHeight = reqHeight;
+    }
+
+    /**
+     * Returns the image decoded for the given uri and target size by an earlier task, or null if
+     * it isn't in the memory cache.
+     */
+    @Nullable
+    @UiThread
+    public static Bitmap getCachedBitmap(Uri uri, int reqWidth, int reqHeight) {
+        return sBitmapCache.get(getCacheKey(uri, reqWidth, reqHeight));
+    }
+
+    private static String getCacheKey(Uri uri, int reqWidth, int reqHeight) {
+        return uri + "@" + reqWidth + "x" + reqHeight;
     }
 
     @Override
     protected Bitmap doInBackground(Uri... params) {
+        String cacheKey = getCacheKey(params[0], mReqWidth, mReqHeight);
+        Bitmap cached = sBitmapCache.get(cacheKey);
+        if (cached != null) return cached;
+
+        CountDownLatch pendingRead;
+        CountDownLatch read = new CountDownLatch(1);
+        synchronized (sPendingReads) {
+            pendingRead = sPendingReads.get(cacheKey);
+            if (pendingRead == null) sPendingReads.put(cacheKey, read);
+        }
+        if (pendingRead != null) {
+            try {
+                if (!pendingRead.await(PENDING_READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, "Timed out waiting for another read of " + params[0]);
+                }
+            } catch (InterruptedException e) {
+                // The task has been cancelled.
+                return null;
+            }
+            cached = sBitmapCache.get(cacheKey);
+            if (cached != null) return cached;
+            // The other read failed, is taking too long, or its image has been evicted already,
+            // try on our own.
+            return read(params[0], cacheKey);
+        }
+
+        try {
+            return read(params[0], cacheKey);
+        } finally {
+            synchronized (sPendingReads) {
+                sPendingReads.remove(cacheKey);
+            }
+            read.countDown();
+        }
+    }
+
+    @Nullable
+    private Bitmap read(Uri uri, String cacheKey) {
         try {
-            ParcelFileDescriptor descriptor = mResolver.openFileDescriptor(params[0], "r");
+            ParcelFileDescriptor descriptor = mResolver.openFileDescriptor(uri, "r");
             if (descriptor == null) return null;
-            FileDescriptor fileDescriptor = descriptor.getFileDescriptor();
-            Bitmap bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor);
-            descriptor.close();
+            // Read the whole file first, as the descriptor may be a pipe that can't be rewound
+            // between decoding the bounds and the pixels.
+            byte[] data;
+            try (InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(descriptor)) {
+                data = readFully(in);
+            }
+            if (isCancelled()) return null;
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            if (mReqWidth > 0 && mReqHeight > 0) {
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                options.inSampleSize = calculateInSampleSize(
+                        options.outWidth, options.outHeight, mReqWidth, mReqHeight);
+                options.inJustDecodeBounds = false;
+            }
+            Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            if (bitmap != null) sBitmapCache.put(cacheKey, bitmap);
             return bitmap;
         } catch (IOException e) {
             Log.e(TAG, "Failed to read bitmap", e);
@@ -59,6 +177,23 @@ public abstract class BrowserServiceImageReadTask extends AsyncTask<Uri, Void, B
         return null;
     }
 
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+    /** Returns the largest power of two sample size that keeps the image at least |req| big. */
+    private static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= reqWidth && height / (inSampleSize * 2) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
     @Override
     protected final void onPostExecute(Bitmap bitmap) {
         onBitmapFileReady(bitmap);
@@ -69,4 +204,4 @@ public abstract class BrowserServiceImageReadTask extends AsyncTask<Uri, Void, B
      * @param bitmap The bitmap corresponds to the given uri.
      */
     protected abstract void onBitmapFileReady(Bitmap bitmap);
-}
\ No newline at end of file
+}
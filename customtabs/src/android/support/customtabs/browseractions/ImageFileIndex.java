@@ -0,0 +1,158 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.support.customtabs.browseractions;
+
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory index of the images saved by {@link BrowserServiceFileProvider}, ordered from the
+ * least to the most recently used. It is built by listing the image directory once, after which
+ * keeping the images within a byte budget doesn't need to touch the directory again.
+ *
+ * The last modification time of a file doubles as its last access time, so that the order
+ * survives process restarts.
+ *
+ * This class is not thread safe.
+ */
+class ImageFileIndex {
+    private static final String TAG = "ImageFileIndex";
+
+    private static class Entry {
+        final long size;
+        long lastAccessTime;
+
+        Entry(long size, long lastAccessTime) {
+            this.size = size;
+            this.lastAccessTime = lastAccessTime;
+        }
+    }
+
+    private final File mDirectory;
+    /** Map from file name to entry, in the order of least recent access. */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mTotalSize;
+
+    /**
+     * Builds the index from the image files found in the given directory.
+     */
+    @WorkerThread
+    ImageFileIndex(File directory, String fileExtension) {
+        mDirectory = directory;
+
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        List<File> images = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().endsWith(fileExtension)) images.add(file);
+        }
+        Collections.sort(images, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File image : images) {
+            Entry entry = new Entry(image.length(), image.lastModified());
+            mEntries.put(image.getName(), entry);
+            mTotalSize += entry.size;
+        }
+    }
+
+    /** Returns the total size of the indexed images in bytes. */
+    long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /** Returns whether the image file with the given name is in the index. */
+    boolean contains(String fileName) {
+        return mEntries.containsKey(fileName);
+    }
+
+    /** Records that the given image file has been (re)written. */
+    @WorkerThread
+    void recordWrite(File file) {
+        Entry entry = new Entry(file.length(), System.currentTimeMillis());
+        Entry previous = mEntries.put(file.getName(), entry);
+        if (previous != null) mTotalSize -= previous.size;
+        mTotalSize += entry.size;
+        file.setLastModified(entry.lastAccessTime);
+    }
+
+    /**
+     * Records that the image file with the given name has been accessed, making it the last to be
+     * evicted.
+     * @return Whether the file is in the index.
+     */
+    @WorkerThread
+    boolean recordAccess(String fileName) {
+        Entry entry = mEntries.get(fileName);
+        if (entry == null) return false;
+        entry.lastAccessTime = System.currentTimeMillis();
+        new File(mDirectory, fileName).setLastModified(entry.lastAccessTime);
+        return true;
+    }
+
+    /**
+     * Deletes the least recently used images until the total size doesn't exceed |maxSize|. The
+     * most recently used image and the images named in |keep| are always kept, so that the images
+     * that have just been saved aren't deleted before they could be read.
+     * @return Whether all the files that had to be deleted were deleted.
+     */
+    @WorkerThread
+    boolean trimToSize(long maxSize, Collection<String> keep) {
+        boolean allDeleted = true;
+        int evictable = mEntries.size() - 1;
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mTotalSize > maxSize && evictable-- > 0) {
+            Map.Entry<String, Entry> entry = it.next();
+            if (keep.contains(entry.getKey())) continue;
+            allDeleted &= delete(it, entry);
+        }
+        return allDeleted;
+    }
+
+    /**
+     * Deletes the images that haven't been used since the given time.
+     * @return Whether all the files that had to be deleted were deleted.
+     */
+    @WorkerThread
+    boolean removeUnusedSince(long time) {
+        boolean allDeleted = true;
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> entry = it.next();
+            if (entry.getValue().lastAccessTime >= time) break;
+            allDeleted &= delete(it, entry);
+        }
+        return allDeleted;
+    }
+
+    private boolean delete(Iterator<Map.Entry<String, Entry>> it, Map.Entry<String, Entry> entry) {
+        File file = new File(mDirectory, entry.getKey());
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "Fail to delete image: " + file.getAbsolutePath());
+            return false;
+        }
+        mTotalSize -= entry.getValue().size;
+        it.remove();
+        return true;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.support.customtabs.browseractions;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.annotation.GuardedBy;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves the images of {@link BrowserServiceFileProvider} on a single I/O thread. Pending images
+ * are taken in batches, encoded one after another (images somebody is already waiting for first),
+ * and then written to disk together in one pass.
+ */
+class ImageSavePipeline {
+    private static final String TAG = "ImageSavePipeline";
+    private static final int MAX_BATCH_SIZE = 8;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 10;
+
+    /** An image to be saved. */
+    static class Request {
+        final Context context;
+        final Uri uri;
+        final String filename;
+        final Bitmap bitmap;
+        final ImageStreamBuffer streamBuffer;
+        /** Whether the image is stored in a file named after its content, not {@link #filename}. */
+        final boolean contentAddressed;
+
+        /** The name of the file the image is stored in, set by the {@link Delegate}. */
+        @Nullable
+        String storedName;
+
+        private long mSequenceNumber;
+        private boolean mPrioritized;
+        private boolean mEncoded;
+
+        Request(Context context, Uri uri, String filename, Bitmap bitmap,
+                ImageStreamBuffer streamBuffer, boolean contentAddressed) {
+            this.context = context.getApplicationContext();
+            this.uri = uri;
+            this.filename = filename;
+            this.bitmap = bitmap;
+            this.streamBuffer = streamBuffer;
+            this.contentAddressed = contentAddressed;
+        }
+
+        /** Whether the image has been encoded into {@link #streamBuffer} and needs writing. */
+        boolean isEncoded() {
+            return mEncoded;
+        }
+    }
+
+    /** Does the parts of saving that depend on the provider's state. Called on the I/O thread. */
+    interface Delegate {
+        /** Returns whether the image has to be encoded, false if it has been saved before. */
+        boolean needsSaving(Request request);
+
+        /** Writes the encoded images of the batch to disk. */
+        void commit(List<Request> batch);
+
+        /** Called for every request once it's been handled, whether it succeeded or not. */
+        void onFinished(Request request);
+    }
+
+    private final Delegate mDelegate;
+    private final ThreadPoolExecutor mWorker;
+
+    @GuardedBy("this")
+    private final PriorityQueue<Request> mQueue = new PriorityQueue<>(11, (a, b) -> {
+        if (a.mPrioritized != b.mPrioritized) return a.mPrioritized ? -1 : 1;
+        return Long.compare(a.mSequenceNumber, b.mSequenceNumber);
+    });
+    @GuardedBy("this")
+    private long mNextSequenceNumber;
+    @GuardedBy("this")
+    private boolean mDraining;
+
+    @GuardedBy("this")
+    private long mTotalEncodeTimeMs;
+    @GuardedBy("this")
+    private int mEncodedCount;
+
+    ImageSavePipeline(Delegate delegate) {
+        mDelegate = delegate;
+        mWorker = new ThreadPoolExecutor(1, 1, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> new Thread(runnable, TAG));
+        mWorker.allowCoreThreadTimeOut(true);
+    }
+
+    /** Queues the request, to be saved as soon as the requests before it have been. */
+    synchronized void enqueue(Request request) {
+        request.mSequenceNumber = mNextSequenceNumber++;
+        mQueue.add(request);
+        if (!mDraining) {
+            mDraining = true;
+            mWorker.execute(this::drain);
+        }
+    }
+
+    /**
+     * Moves the image with the given uri ahead of the images nobody is waiting for yet, if it
+     * hasn't been picked up by the I/O thread already.
+     */
+    synchronized void prioritize(Uri uri) {
+        for (Request request : mQueue) {
+            if (request.mPrioritized || !request.uri.equals(uri)) continue;
+            mQueue.remove(request);
+            request.mPrioritized = true;
+            mQueue.add(request);
+            return;
+        }
+    }
+
+    /** Returns the number of images waiting to be picked up by the I/O thread. */
+    synchronized int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /** Returns the average time it has taken to encode an image, or 0 if none has been. */
+    synchronized long getAverageEncodeTimeMs() {
+        return mEncodedCount == 0 ? 0 : mTotalEncodeTimeMs / mEncodedCount;
+    }
+
+    @WorkerThread
+    private void drain() {
+        while (true) {
+            List<Request> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            synchronized (this) {
+                while (batch.size() < MAX_BATCH_SIZE && !mQueue.isEmpty()) {
+                    batch.add(mQueue.poll());
+                }
+                if (batch.isEmpty()) {
+                    mDraining = false;
+                    return;
+                }
+            }
+            processBatch(batch);
+        }
+    }
+
+    @WorkerThread
+    private void processBatch(List<Request> batch) {
+        try {
+            for (Request request : batch) {
+                // Readers' stream timeouts start now, not while the image was queued.
+                request.streamBuffer.start();
+                if (mDelegate.needsSaving(request)) encode(request);
+            }
+            mDelegate.commit(batch);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Fail to save images", e);
+        } finally {
+            for (Request request : batch) {
+                // Lets readers waiting on the stream fall back to the file if nothing was encoded.
+                request.streamBuffer.abandon();
+                mDelegate.onFinished(request);
+            }
+        }
+    }
+
+    @WorkerThread
+    private void encode(Request request) {
+        long start = SystemClock.elapsedRealtime();
+        // Readers are served from the stream buffer while the image is being encoded.
+        request.mEncoded =
+                request.bitmap.compress(Bitmap.CompressFormat.PNG, 100, request.streamBuffer);
+        request.streamBuffer.finish(request.mEncoded);
+        long encodeTimeMs = SystemClock.elapsedRealtime() - start;
+
+        if (!request.mEncoded) {
+            Log.e(TAG, "Fail to encode image " + request.filename);
+            return;
+        }
+        synchronized (this) {
+            mTotalEncodeTimeMs += encodeTimeMs;
+            mEncodedCount++;
+        }
+    }
+}
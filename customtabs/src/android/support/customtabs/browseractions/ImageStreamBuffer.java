@@ -0,0 +1,147 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.support.customtabs.browseractions;
+
+import android.os.SystemClock;
+import android.support.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Receives an image as it's being encoded by {@link BrowserServiceFileProvider} and lets any
+ * number of readers copy it at the same time, so that they don't have to wait for the encoding to
+ * finish to get the first bytes.
+ *
+ * The encoder calls {@link #start} once it gets to the image, writes into the buffer and then
+ * calls {@link #finish}, or {@link #abandon} if it didn't need to encode the image after all.
+ */
+class ImageStreamBuffer extends OutputStream {
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+
+    private static final int STATE_QUEUED = 0;
+    private static final int STATE_ENCODING = 1;
+    private static final int STATE_FINISHED = 2;
+    private static final int STATE_FAILED = 3;
+    private static final int STATE_ABANDONED = 4;
+
+    /** Bytes before {@link #mSize} are never modified, so they can be read outside the lock. */
+    private byte[] mData = new byte[INITIAL_CAPACITY];
+    private int mSize;
+    private int mState = STATE_QUEUED;
+
+    @Override
+    public void write(int b) {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        if (mState != STATE_ENCODING) throw new IllegalStateException("Encoding has ended");
+        if (mSize + len > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(mData.length * 2, mSize + len));
+        }
+        System.arraycopy(b, off, mData, mSize, len);
+        mSize += len;
+        notifyAll();
+    }
+
+    /** Marks that the encoder has got to the image, from then on readers expect progress. */
+    synchronized void start() {
+        if (mState != STATE_QUEUED) return;
+        mState = STATE_ENCODING;
+        notifyAll();
+    }
+
+    /**
+     * Marks the end of the encoding.
+     * @param success Whether the image was encoded successfully.
+     */
+    synchronized void finish(boolean success) {
+        if (mState != STATE_QUEUED && mState != STATE_ENCODING) return;
+        mState = success ? STATE_FINISHED : STATE_FAILED;
+        notifyAll();
+    }
+
+    /**
+     * Marks that the image won't be encoded, e.g. because it has been saved before. Does nothing
+     * if the encoding has already ended.
+     */
+    synchronized void abandon() {
+        if (mState != STATE_QUEUED && mState != STATE_ENCODING) return;
+        mState = mSize == 0 ? STATE_ABANDONED : STATE_FAILED;
+        notifyAll();
+    }
+
+    /** Writes the encoded image to the given stream, must be called after {@link #finish}. */
+    synchronized void writeTo(OutputStream out) throws IOException {
+        out.write(mData, 0, mSize);
+    }
+
+    /**
+     * Copies the image into the given stream as it's being encoded.
+     * @param out The stream to copy the image into.
+     * @param timeoutMs The maximum time to wait for the encoder to make progress, once it has
+     *                  started on the image. There is no limit while the image is queued.
+     * @return Whether the image was copied, false if it has been abandoned.
+     * @throws IOException If the encoding failed or timed out, or writing into |out| failed.
+     */
+    @WorkerThread
+    boolean copyTo(OutputStream out, long timeoutMs) throws IOException {
+        int offset = 0;
+        while (true) {
+            byte[] data;
+            int size;
+            int state;
+            synchronized (this) {
+                long deadline = SystemClock.uptimeMillis() + timeoutMs;
+                while (mSize == offset
+                        && (mState == STATE_QUEUED || mState == STATE_ENCODING)) {
+                    try {
+                        if (mState == STATE_QUEUED) {
+                            // The image may be waiting behind others, which isn't a lack of
+                            // progress. The encoder always ends up starting or abandoning it.
+                            wait();
+                            deadline = SystemClock.uptimeMillis() + timeoutMs;
+                            continue;
+                        }
+                        long remaining = deadline - SystemClock.uptimeMillis();
+                        if (remaining <= 0) {
+                            throw new IOException("Timed out waiting for the image to be encoded");
+                        }
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted waiting for the image");
+                    }
+                }
+                if (mState == STATE_FAILED) throw new IOException("Failed to encode the image");
+                if (mState == STATE_ABANDONED) return false;
+                data = mData;
+                size = mSize;
+                state = mState;
+            }
+
+            if (size > offset) {
+                out.write(data, offset, size - offset);
+                offset = size;
+            } else if (state == STATE_FINISHED) {
+                return true;
+            }
+        }
+    }
+}
@@ -122,6 +122,8 @@ public class LauncherActivity extends AppCompatActivity {
                     getSplashImageTransformationMatrix(),
                     mMetadata.splashScreenFadeOutDurationMillis,
                     mMetadata.fileProviderAuthority);
+            mSplashScreenStrategy.setUseWindowBackground(
+                    shouldShowSplashScreenAsWindowBackground());
         }
 
         TrustedWebActivityIntentBuilder twaBuilder =
@@ -170,6 +172,16 @@ public class LauncherActivity extends AppCompatActivity {
         return null;
     }
 
+    /**
+     * Override to show the splash screen as the window background of this Activity rather than as
+     * its content. This makes the splash screen appear in the first frame that is drawn, but the
+     * image is then drawn by the window, which may differ slightly from a full screen view, e.g.
+     * when the Activity is not drawn behind system bars.
+     */
+    protected boolean shouldShowSplashScreenAsWindowBackground() {
+        return false;
+    }
+
     private int getColorCompat(int splashScreenBackgroundColorId) {
         return ContextCompat.getColor(this, splashScreenBackgroundColorId);
     }
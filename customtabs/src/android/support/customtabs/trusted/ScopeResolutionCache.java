@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs.trusted;
+
+import android.content.ComponentName;
+import android.net.Uri;
+import android.support.annotation.GuardedBy;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers which {@link TrustedWebActivityService} handles a given scope and origin, so that
+ * {@link TrustedWebActivityServiceConnectionManager} doesn't need to query the PackageManager for
+ * every request.
+ * <p>
+ * A scope that has a cached service also provides that service for any scope nested within it
+ * (e.g. "https://example.com/app/" for "https://example.com/app/notifications"). The absence of a
+ * service is only remembered for the exact scope.
+ * <p>
+ * The cache is only valid for a given set of verified packages and installed apps, so it is
+ * cleared whenever either of them changes, see {@link #onPackagesChanged}. Results resolved before
+ * the cache was cleared are dropped, see {@link #getGeneration}. It is safe to be used on any
+ * thread.
+ */
+class ScopeResolutionCache {
+    /** The result of a lookup. */
+    static class Result {
+        /** The service for the scope, or null if the scope has no service. */
+        @Nullable
+        final ComponentName service;
+
+        Result(@Nullable ComponentName service) {
+            this.service = service;
+        }
+    }
+
+    private static final Result NO_SERVICE = new Result(null);
+
+    /** The number of times apps have been installed, updated or removed in this process. */
+    private static final AtomicInteger sPackageChangeCount = new AtomicInteger();
+
+    /** Map from origin to a map from scope to the result of resolving the scope. */
+    @GuardedBy("this")
+    private final Map<String, Map<String, Result>> mResults = new HashMap<>();
+
+    /**
+     * The verified packages the cached results have been resolved with. If a lookup is made with
+     * another set of verified packages, the cache is cleared.
+     */
+    @GuardedBy("this")
+    @Nullable
+    private Object mVerifiedPackages;
+
+    /** The value of {@link #sPackageChangeCount} the cached results have been resolved with. */
+    @GuardedBy("this")
+    private int mPackageChangeCount = sPackageChangeCount.get();
+
+    /** Incremented whenever the cache is cleared. */
+    @GuardedBy("this")
+    private int mGeneration;
+
+    /**
+     * Invalidates all caches, should be called when apps are installed, updated or removed.
+     */
+    static void onPackagesChanged() {
+        sPackageChangeCount.incrementAndGet();
+    }
+
+    /**
+     * Returns the cached result for the given scope and origin, or null if there's none.
+     * @param verifiedPackages An immutable object describing the verified packages that the
+     *                         result would be resolved with.
+     */
+    @Nullable
+    synchronized Result get(Uri scope, String origin, Object verifiedPackages) {
+        validateLocked(verifiedPackages);
+
+        Map<String, Result> results = mResults.get(origin);
+        if (results == null) return null;
+
+        String scopeString = scope.toString();
+        Result exactResult = results.get(scopeString);
+        if (exactResult != null) return exactResult;
+
+        // Find the longest enclosing scope that has a service.
+        Result result = null;
+        int resultScopeLength = 0;
+        for (Map.Entry<String, Result> entry : results.entrySet()) {
+            String cachedScope = entry.getKey();
+            if (entry.getValue().service == null) continue;
+            if (cachedScope.length() <= resultScopeLength) continue;
+            if (!isEnclosingScope(cachedScope, scopeString)) continue;
+            result = entry.getValue();
+            resultScopeLength = cachedScope.length();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the current generation of the cache, to be passed to {@link #put} along with a
+     * result resolved after this call. Call it after {@link #get}, which may clear the cache.
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches the result of resolving the given scope and origin, unless the cache has been
+     * cleared since |generation| was obtained from {@link #getGeneration}, in which case the
+     * result may be stale.
+     */
+    synchronized void put(Uri scope, String origin, int generation,
+            @Nullable ComponentName service) {
+        validateLocked(mVerifiedPackages);
+        if (generation != mGeneration) return;
+
+        Map<String, Result> results = mResults.get(origin);
+        if (results == null) {
+            results = new HashMap<>();
+            mResults.put(origin, results);
+        }
+        results.put(scope.toString(), service == null ? NO_SERVICE : new Result(service));
+    }
+
+    /** Clears the cache, e.g. when a cached service turns out to be gone. */
+    synchronized void clear() {
+        mResults.clear();
+        mGeneration++;
+    }
+
+    @GuardedBy("this")
+    private void validateLocked(@Nullable Object verifiedPackages) {
+        int packageChangeCount = sPackageChangeCount.get();
+        if (verifiedPackages == mVerifiedPackages && packageChangeCount == mPackageChangeCount) {
+            return;
+        }
+        clear();
+        mVerifiedPackages = verifiedPackages;
+        mPackageChangeCount = packageChangeCount;
+    }
+
+    private static boolean isEnclosingScope(String enclosingScope, String scope) {
+        if (!scope.startsWith(enclosingScope)) return false;
+        // Make sure "https://example.com/app" doesn't enclose "https://example.com/application".
+        return enclosingScope.endsWith("/") || scope.length() == enclosingScope.length()
+                || scope.charAt(enclosingScope.length()) == '/';
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs.trusted;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on top of another (possibly
+ * parallel) {@link Executor}. Similar to AsyncTask's SERIAL_EXECUTOR, but any number of these can
+ * share one thread pool while staying independent of each other.
+ */
+class SerialExecutor implements Executor {
+    private final Executor mExecutor;
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    /** Guarded by this. */
+    @Nullable
+    private Runnable mActive;
+
+    SerialExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    @Override
+    public synchronized void execute(@NonNull final Runnable task) {
+        mTasks.offer(() -> {
+            try {
+                task.run();
+            } finally {
+                scheduleNext();
+            }
+        });
+        if (mActive == null) {
+            scheduleNext();
+        }
+    }
+
+    /** Returns the number of tasks submitted that haven't started running yet. */
+    synchronized int getQueueDepth() {
+        return mTasks.size();
+    }
+
+    /**
+     * Starts the next task. If the underlying Executor rejects it, the task is dropped and the
+     * exception is rethrown, while the tasks after it are run once another task is submitted.
+     */
+    private synchronized void scheduleNext() {
+        mActive = mTasks.poll();
+        if (mActive != null) {
+            try {
+                mExecutor.execute(mActive);
+            } catch (RuntimeException e) {
+                mActive = null;
+                throw e;
+            }
+        }
+    }
+}
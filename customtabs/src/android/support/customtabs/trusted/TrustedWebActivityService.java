@@ -21,10 +21,11 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
 import android.graphics.Bitmap;
@@ -32,21 +33,37 @@ import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Parcelable;
 import android.os.StrictMode;
+import android.os.SystemClock;
 import android.service.notification.StatusBarNotification;
 import android.support.annotation.CallSuper;
+import android.support.annotation.GuardedBy;
 import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.support.customtabs.KeyValueStore;
 import android.support.customtabs.trusted.TrustedWebActivityServiceWrapper.ActiveNotificationsArgs;
+import android.support.customtabs.trusted.TrustedWebActivityServiceWrapper.BatchArgs;
+import android.support.customtabs.trusted.TrustedWebActivityServiceWrapper.BatchResultArgs;
 import android.support.customtabs.trusted.TrustedWebActivityServiceWrapper.CancelNotificationArgs;
+import android.support.customtabs.trusted.TrustedWebActivityServiceWrapper.NotificationDescriptor;
+import android.support.customtabs.trusted.TrustedWebActivityServiceWrapper.NotificationDescriptorsArgs;
+import android.support.customtabs.trusted.TrustedWebActivityServiceWrapper.NotificationQueryArgs;
 import android.support.customtabs.trusted.TrustedWebActivityServiceWrapper.NotificationsEnabledArgs;
 import android.support.customtabs.trusted.TrustedWebActivityServiceWrapper.NotifyNotificationArgs;
 import android.support.customtabs.trusted.TrustedWebActivityServiceWrapper.ResultArgs;
 import android.support.v4.app.NotificationManagerCompat;
+import android.util.Log;
 
-import java.util.Arrays;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The TrustedWebActivityService lives in a client app and serves requests from a Trusted Web
@@ -103,16 +120,102 @@ public class TrustedWebActivityService extends Service {
     /** Used as a return value of {@link #getSmallIconId} when the icon is not provided. */
     public static final int NO_ID = -1;
 
+    private static final String TAG = "TWAService";
+
+    /**
+     * The maximum width and height of the small icon bitmap sent to the provider. Larger images
+     * are scaled down, so that they don't exceed the Binder transaction size limit.
+     */
+    private static final int MAX_SMALL_ICON_BITMAP_SIZE_PX = 256;
+
+    /** The SharedPreferences file the verified provider used to be stored in. */
     private static final String PREFS_FILE = "TrustedWebActivityVerifiedProvider";
-    private static final String PREFS_VERIFIED_PROVIDER = "Provider";
+    private static final String STORE_NAMESPACE = PREFS_FILE;
+    private static final String KEY_VERIFIED_PROVIDER = STORE_NAMESPACE + "/Provider";
 
     static final String KEY_SMALL_ICON_BITMAP =
             "android.support.customtabs.trusted.SMALL_ICON_BITMAP";
 
     private NotificationManager mNotificationManager;
 
+    /**
+     * The UID of the verified provider, or -1 if there is none. Only written on the main thread.
+     * @deprecated Callers are checked against an internal copy of the verified provider's UID.
+     *             This field is kept up to date for compatibility, but writing it has no effect.
+     */
+    @Deprecated
     public int mVerifiedUid = -1;
 
+    /**
+     * Incremented every time the verified provider is changed or apps are installed, updated or
+     * removed, so that running services know to update {@link #mVerifiedProvider}.
+     */
+    private static final AtomicInteger sVerifiedProviderVersion = new AtomicInteger();
+
+    /** The UID of the verified provider, as of a given {@link #sVerifiedProviderVersion}. */
+    private static class VerifiedProvider {
+        final int version;
+        /** -1 if there is no verified provider or it isn't installed. */
+        final int uid;
+
+        VerifiedProvider(int version, int uid) {
+            this.version = version;
+            this.uid = uid;
+        }
+    }
+
+    /**
+     * The only caller allowed to use this service. It is loaded in the background, first in
+     * {@link #onCreate} and then whenever the verified provider may have changed, and replaced as
+     * a whole, so Binder threads can read it without locking and never hit the disk.
+     */
+    @Nullable
+    private volatile VerifiedProvider mVerifiedProvider;
+    private final Object mVerifiedProviderLock = new Object();
+    /** Counted down when the load running in the background finishes, null if none is. */
+    @GuardedBy("mVerifiedProviderLock")
+    @Nullable
+    private CountDownLatch mVerifiedProviderLoad;
+
+    /**
+     * How long a Binder thread waits for the verified provider to be loaded in the background
+     * before rejecting the caller.
+     */
+    private static final long VERIFIED_PROVIDER_LOAD_TIMEOUT_MS = 1000;
+
+    /** Reinstalling the verified provider may change its UID. */
+    @Nullable
+    private BroadcastReceiver mPackageChangeReceiver;
+
+    /** Used in {@link #mChannelImportances} for channels that don't exist. */
+    private static final int CHANNEL_DOES_NOT_EXIST = Integer.MIN_VALUE;
+
+    /**
+     * How long the cached notification state stays valid. Android P+ broadcasts changes to
+     * whether the app and its channels are blocked, so the cache can be kept for longer there.
+     */
+    private static final long NOTIFICATION_STATE_MAX_AGE_MS =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? 60 * 1000 : 5 * 1000;
+
+    /**
+     * Cache of whether notifications are enabled for the app and of channel importances, so that
+     * the NotificationManager isn't queried for every notification. Cleared when it gets older
+     * than {@link #NOTIFICATION_STATE_MAX_AGE_MS} or when the block state changes.
+     */
+    @Nullable
+    private volatile Boolean mNotificationsEnabled;
+    /** Map from channel id to its importance or {@link #CHANNEL_DOES_NOT_EXIST}. */
+    private final Map<String, Integer> mChannelImportances = new ConcurrentHashMap<>();
+    private volatile long mNotificationStateTimestamp;
+
+    @Nullable
+    private BroadcastReceiver mBlockStateReceiver;
+
+    /** The small icon bitmap, once decoded, along with the resource id it was decoded from. */
+    @Nullable
+    private volatile Bitmap mSmallIconBitmap;
+    private volatile int mSmallIconBitmapId = NO_ID;
+
     private final ITrustedWebActivityService.Stub mBinder =
             new ITrustedWebActivityService.Stub() {
         @Override
@@ -147,6 +250,48 @@ public class TrustedWebActivityService extends Service {
             TrustedWebActivityService.this.cancelNotification(args.platformTag, args.platformId);
         }
 
+        @Override
+        public Bundle notifyNotificationsWithChannel(Bundle bundle) {
+            checkCaller();
+
+            Bundle[] items = BatchArgs.fromBundle(bundle).items;
+            boolean[] successes = new boolean[items.length];
+
+            for (int i = 0; i < items.length; i++) {
+                try {
+                    NotifyNotificationArgs args = NotifyNotificationArgs.fromBundle(items[i]);
+                    successes[i] = TrustedWebActivityService.this.notifyNotificationWithChannel(
+                            args.platformTag, args.platformId, args.notification,
+                            args.channelName);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Failed to display a notification in a batch.", e);
+                }
+            }
+
+            return new BatchResultArgs(successes).toBundle();
+        }
+
+        @Override
+        public Bundle cancelNotifications(Bundle bundle) {
+            checkCaller();
+
+            Bundle[] items = BatchArgs.fromBundle(bundle).items;
+            boolean[] successes = new boolean[items.length];
+
+            for (int i = 0; i < items.length; i++) {
+                try {
+                    CancelNotificationArgs args = CancelNotificationArgs.fromBundle(items[i]);
+                    TrustedWebActivityService.this.cancelNotification(args.platformTag,
+                            args.platformId);
+                    successes[i] = true;
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Failed to cancel a notification in a batch.", e);
+                }
+            }
+
+            return new BatchResultArgs(successes).toBundle();
+        }
+
         @Override
         public Bundle getActiveNotifications() {
             checkCaller();
@@ -155,6 +300,16 @@ public class TrustedWebActivityService extends Service {
                     TrustedWebActivityService.this.getActiveNotifications()).toBundle();
         }
 
+        @Override
+        public Bundle getActiveNotificationDescriptors(Bundle bundle) {
+            checkCaller();
+
+            NotificationQueryArgs args = NotificationQueryArgs.fromBundle(bundle);
+            return new NotificationDescriptorsArgs(NotificationDescriptor.query(
+                    TrustedWebActivityService.this.getActiveNotifications(), args.tagPrefix,
+                    args.offset, args.limit)).toBundle();
+        }
+
         @Override
         public int getSmallIconId() {
             checkCaller();
@@ -170,27 +325,16 @@ public class TrustedWebActivityService extends Service {
         }
 
         private void checkCaller() {
-            if (mVerifiedUid == -1) {
-                String[] packages = getPackageManager().getPackagesForUid(getCallingUid());
-                // We need to read Preferences. This should only be called on the Binder thread
-                // which is designed to handle long running, blocking tasks, so disk I/O should be
-                // OK.
-                StrictMode.ThreadPolicy policy = StrictMode.allowThreadDiskReads();
-                try {
-                    String verifiedPackage = getPreferences(TrustedWebActivityService.this)
-                            .getString(PREFS_VERIFIED_PROVIDER, null);
-
-                    if (Arrays.asList(packages).contains(verifiedPackage)) {
-                        mVerifiedUid = getCallingUid();
+            int callingUid = getCallingUid();
+            VerifiedProvider verifiedProvider = mVerifiedProvider;
 
-                        return;
-                    }
-                } finally {
-                    StrictMode.setThreadPolicy(policy);
-                }
+            if (verifiedProvider == null
+                    || verifiedProvider.version != sVerifiedProviderVersion.get()) {
+                // Not loaded yet, or the verified provider may have changed since.
+                verifiedProvider = awaitVerifiedProvider();
             }
 
-            if (mVerifiedUid == getCallingUid()) return;
+            if (verifiedProvider != null && verifiedProvider.uid == callingUid) return;
 
             throw new SecurityException("Caller is not verified as Trusted Web Activity provider.");
         }
@@ -206,6 +350,53 @@ public class TrustedWebActivityService extends Service {
         super.onCreate();
         mNotificationManager =
                 (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+
+        // Load the verified provider ahead of time, so that Binder threads don't hit the disk.
+        loadVerifiedProviderInBackground();
+
+        IntentFilter packageChangeFilter = new IntentFilter();
+        packageChangeFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageChangeFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageChangeFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageChangeFilter.addDataScheme("package");
+        mPackageChangeReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                sVerifiedProviderVersion.incrementAndGet();
+            }
+        };
+        registerReceiver(mPackageChangeReceiver, packageChangeFilter);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(NotificationManager.ACTION_APP_BLOCK_STATE_CHANGED);
+            filter.addAction(NotificationManager.ACTION_NOTIFICATION_CHANNEL_BLOCK_STATE_CHANGED);
+            mBlockStateReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    clearNotificationState();
+                }
+            };
+            registerReceiver(mBlockStateReceiver, filter);
+        }
+    }
+
+    /**
+     * Called by the system to notify that the service is being removed. Do not call this method
+     * directly. Overrides must call {@code super.onDestroy()}.
+     */
+    @Override
+    @CallSuper
+    public void onDestroy() {
+        if (mBlockStateReceiver != null) {
+            unregisterReceiver(mBlockStateReceiver);
+            mBlockStateReceiver = null;
+        }
+        if (mPackageChangeReceiver != null) {
+            unregisterReceiver(mPackageChangeReceiver);
+            mPackageChangeReceiver = null;
+        }
+        super.onDestroy();
     }
 
     /**
@@ -216,18 +407,18 @@ public class TrustedWebActivityService extends Service {
     protected boolean areNotificationsEnabled(String channelName) {
         ensureOnCreateCalled();
 
-        if (!NotificationManagerCompat.from(this).areNotificationsEnabled()) return false;
+        if (!areAppNotificationsEnabled()) return false;
 
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return true;
 
-        String channelId = channelNameToId(channelName);
-        NotificationChannel channel = mNotificationManager.getNotificationChannel(channelId);
-
-        return channel == null || channel.getImportance() != NotificationManager.IMPORTANCE_NONE;
+        int importance = getChannelImportance(channelNameToId(channelName));
+        return importance == CHANNEL_DOES_NOT_EXIST
+                || importance != NotificationManager.IMPORTANCE_NONE;
     }
 
     /**
-     * Displays a notification.
+     * Displays a notification. When the provider delegates several notifications in one batch,
+     * this method is called for each of them in turn on the same thread.
      * @param platformTag The notification tag, see
      *                    {@link NotificationManager#notify(String, int, Notification)}.
      * @param platformId The notification id, see
@@ -243,30 +434,149 @@ public class TrustedWebActivityService extends Service {
             Notification notification, String channelName) {
         ensureOnCreateCalled();
 
-        if (!NotificationManagerCompat.from(this).areNotificationsEnabled()) return false;
+        if (!areAppNotificationsEnabled()) return false;
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             String channelId = channelNameToId(channelName);
-            // Create the notification channel, (no-op if already created).
-            mNotificationManager.createNotificationChannel(new NotificationChannel(channelId,
-                    channelName, NotificationManager.IMPORTANCE_DEFAULT));
+            int importance = getChannelImportance(channelId);
+            if (importance == CHANNEL_DOES_NOT_EXIST) {
+                mNotificationManager.createNotificationChannel(new NotificationChannel(channelId,
+                        channelName, NotificationManager.IMPORTANCE_DEFAULT));
+                mChannelImportances.remove(channelId);
+                importance = getChannelImportance(channelId);
+            }
 
             // Check that the channel is enabled.
-            if (mNotificationManager.getNotificationChannel(channelId).getImportance() ==
-                    NotificationManager.IMPORTANCE_NONE) {
-                return false;
+            if (importance == NotificationManager.IMPORTANCE_NONE) return false;
+
+            // Set our notification to have that channel, unless the provider has done it already.
+            if (!channelId.equals(notification.getChannelId())) {
+                Notification.Builder builder =
+                        Notification.Builder.recoverBuilder(this, notification);
+                builder.setChannelId(channelId);
+                notification = builder.build();
             }
-
-            // Set our notification to have that channel.
-            Notification.Builder builder = Notification.Builder.recoverBuilder(this, notification);
-            builder.setChannelId(channelId);
-            notification = builder.build();
         }
 
         mNotificationManager.notify(platformTag, platformId, notification);
         return true;
     }
 
+    /**
+     * Starts loading the verified provider on a background thread, unless a load is running
+     * already.
+     * @return A latch counted down once the load has finished.
+     */
+    private CountDownLatch loadVerifiedProviderInBackground() {
+        synchronized (mVerifiedProviderLock) {
+            if (mVerifiedProviderLoad != null) return mVerifiedProviderLoad;
+            CountDownLatch load = new CountDownLatch(1);
+            mVerifiedProviderLoad = load;
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+                try {
+                    loadVerifiedProvider();
+                } finally {
+                    synchronized (mVerifiedProviderLock) {
+                        mVerifiedProviderLoad = null;
+                    }
+                    load.countDown();
+                }
+            });
+            return load;
+        }
+    }
+
+    /**
+     * Reads the verified provider from the store and finds its UID. May hit the disk, so it only
+     * runs on the background thread started by {@link #loadVerifiedProviderInBackground}.
+     */
+    @WorkerThread
+    private void loadVerifiedProvider() {
+        int version = sVerifiedProviderVersion.get();
+        int verifiedUid = -1;
+        String verifiedPackage = getStore(this).getString(KEY_VERIFIED_PROVIDER);
+        if (verifiedPackage != null) {
+            try {
+                verifiedUid = getPackageManager().getApplicationInfo(verifiedPackage, 0).uid;
+            } catch (PackageManager.NameNotFoundException e) {
+                // The verified provider has been uninstalled.
+            }
+        }
+
+        mVerifiedProvider = new VerifiedProvider(version, verifiedUid);
+        int uid = verifiedUid;
+        new Handler(Looper.getMainLooper()).post(() -> mVerifiedUid = uid);
+    }
+
+    /**
+     * Waits for the verified provider to be loaded in the background, starting a load if none is
+     * running.
+     * @return The verified provider, or null if it couldn't be loaded in time, in which case the
+     *         caller is rejected.
+     */
+    @Nullable
+    private VerifiedProvider awaitVerifiedProvider() {
+        long deadline = SystemClock.elapsedRealtime() + VERIFIED_PROVIDER_LOAD_TIMEOUT_MS;
+        // A load that was already running may have started before the latest change, so a
+        // second one may be needed.
+        for (int attempt = 0; attempt < 2; attempt++) {
+            long timeoutMs = deadline - SystemClock.elapsedRealtime();
+            try {
+                if (timeoutMs <= 0 || !loadVerifiedProviderInBackground()
+                        .await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            VerifiedProvider verifiedProvider = mVerifiedProvider;
+            if (verifiedProvider != null
+                    && verifiedProvider.version == sVerifiedProviderVersion.get()) {
+                return verifiedProvider;
+            }
+        }
+        return null;
+    }
+
+    private boolean areAppNotificationsEnabled() {
+        expireNotificationStateIfNeeded();
+        Boolean enabled = mNotificationsEnabled;
+        if (enabled == null) {
+            enabled = NotificationManagerCompat.from(this).areNotificationsEnabled();
+            mNotificationsEnabled = enabled;
+        }
+        return enabled;
+    }
+
+    /**
+     * Returns the importance of the given channel or {@link #CHANNEL_DOES_NOT_EXIST}, querying the
+     * NotificationManager only if it isn't cached.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    private int getChannelImportance(String channelId) {
+        expireNotificationStateIfNeeded();
+        Integer importance = mChannelImportances.get(channelId);
+        if (importance == null) {
+            NotificationChannel channel = mNotificationManager.getNotificationChannel(channelId);
+            importance = channel == null ? CHANNEL_DOES_NOT_EXIST : channel.getImportance();
+            mChannelImportances.put(channelId, importance);
+        }
+        return importance;
+    }
+
+    private void expireNotificationStateIfNeeded() {
+        long now = SystemClock.elapsedRealtime();
+        if (now - mNotificationStateTimestamp <= NOTIFICATION_STATE_MAX_AGE_MS) return;
+        clearNotificationState();
+        mNotificationStateTimestamp = now;
+    }
+
+    private void clearNotificationState() {
+        mNotificationsEnabled = null;
+        mChannelImportances.clear();
+    }
+
     /**
      * Cancels a notification.
      * @param platformTag The notification tag, see
@@ -300,11 +610,53 @@ public class TrustedWebActivityService extends Service {
         if (id == NO_ID) {
             return bundle;
         }
-        bundle.putParcelable(KEY_SMALL_ICON_BITMAP,
-                BitmapFactory.decodeResource(getResources(), id));
+
+        Bitmap bitmap = mSmallIconBitmap;
+        if (bitmap == null || mSmallIconBitmapId != id) {
+            // Benign race: several threads may decode the icon, but they all get the same result.
+            bitmap = decodeSmallIcon(id);
+            mSmallIconBitmapId = id;
+            mSmallIconBitmap = bitmap;
+        }
+        bundle.putParcelable(KEY_SMALL_ICON_BITMAP, bitmap);
         return bundle;
     }
 
+    /**
+     * Decodes the given resource, subsampling it so that neither dimension exceeds
+     * {@link #MAX_SMALL_ICON_BITMAP_SIZE_PX}.
+     */
+    @Nullable
+    private Bitmap decodeSmallIcon(int id) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(getResources(), id, options);
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        int largestDimension = Math.max(options.outWidth, options.outHeight);
+        while (largestDimension / options.inSampleSize > MAX_SMALL_ICON_BITMAP_SIZE_PX) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeResource(getResources(), id, options);
+        if (bitmap == null) return null;
+
+        // Subsampling rounds the dimensions up, and resources may be scaled for the density.
+        largestDimension = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (largestDimension > MAX_SMALL_ICON_BITMAP_SIZE_PX) {
+            float scale = (float) MAX_SMALL_ICON_BITMAP_SIZE_PX / largestDimension;
+            bitmap = Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, Math.min(MAX_SMALL_ICON_BITMAP_SIZE_PX,
+                            Math.round(bitmap.getWidth() * scale))),
+                    Math.max(1, Math.min(MAX_SMALL_ICON_BITMAP_SIZE_PX,
+                            Math.round(bitmap.getHeight() * scale))),
+                    true);
+        }
+        assert bitmap.getByteCount() <= MAX_SMALL_ICON_BITMAP_SIZE_PX
+                * MAX_SMALL_ICON_BITMAP_SIZE_PX * 4;
+        return bitmap;
+    }
+
     /**
      * Returns the Android resource id of a drawable to be used for the small icon of the
      * notification. This is called by the provider as it is constructing the notification, so a
@@ -336,21 +688,21 @@ public class TrustedWebActivityService extends Service {
 
     @Override
     final public boolean onUnbind(Intent intent) {
-        mVerifiedUid = -1;
-
         return super.onUnbind(intent);
     }
 
     /**
-     * Should *not* be called on UI Thread, as accessing Preferences may hit disk.
+     * Should *not* be called on UI Thread, as loading the store may hit disk.
      */
-    private static SharedPreferences getPreferences(Context context) {
-        return context.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
+    private static KeyValueStore getStore(Context context) {
+        KeyValueStore store = KeyValueStore.getInstance(context);
+        store.migrateFromSharedPreferences(context, PREFS_FILE, STORE_NAMESPACE);
+        return store;
     }
 
     /**
      * Sets (asynchronously) the package that this service will accept connections from.
-     * @param context A context to be used to access SharedPreferences.
+     * @param context A context to be used to access the store.
      * @param provider The package of the provider to accept connections from or null to clear.
      * @hide
      */
@@ -358,13 +710,12 @@ public class TrustedWebActivityService extends Service {
         final String providerEmptyChecked =
                 (provider == null || provider.isEmpty()) ? null : provider;
 
-        // Perform on a background thread as accessing Preferences may cause disk access.
+        // Perform on a background thread as loading the store may cause disk access.
         new AsyncTask<Void, Void, Void>() {
             @Override
             protected Void doInBackground(Void... voids) {
-                SharedPreferences.Editor editor = getPreferences(context).edit();
-                editor.putString(PREFS_VERIFIED_PROVIDER, providerEmptyChecked);
-                editor.apply();
+                getStore(context).putString(KEY_VERIFIED_PROVIDER, providerEmptyChecked);
+                sVerifiedProviderVersion.incrementAndGet();
                 return null;
             }
         }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
@@ -372,18 +723,18 @@ public class TrustedWebActivityService extends Service {
 
     /**
      * See {@link #setVerifiedProvider}, the main difference being that this approach sets the
-     * provider synchronously, so may trigger a disk read.
+     * provider synchronously, so may trigger disk reads and writes.
      * @hide
      */
     public static final void setVerifiedProviderSynchronouslyForTesting(Context context,
             @Nullable String provider) {
         String providerEmptyChecked = (provider == null || provider.isEmpty()) ? null : provider;
 
-        StrictMode.ThreadPolicy policy = StrictMode.allowThreadDiskReads();
+        // Migrating the store may write to disk.
+        StrictMode.ThreadPolicy policy = StrictMode.allowThreadDiskWrites();
         try {
-            SharedPreferences.Editor editor = getPreferences(context).edit();
-            editor.putString(PREFS_VERIFIED_PROVIDER, providerEmptyChecked);
-            editor.apply();
+            getStore(context).putString(KEY_VERIFIED_PROVIDER, providerEmptyChecked);
+            sVerifiedProviderVersion.incrementAndGet();
         } finally {
             StrictMode.setThreadPolicy(policy);
         }
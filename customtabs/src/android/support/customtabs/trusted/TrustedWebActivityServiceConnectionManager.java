@@ -16,31 +16,42 @@
 
 package android.support.customtabs.trusted;
 
-import android.annotation.SuppressLint;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
 import android.os.StrictMode;
 import android.os.TransactionTooLargeException;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.customtabs.KeyValueStore;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A TrustedWebActivityServiceConnectionManager will be used by a Trusted Web Activity provider and
@@ -52,10 +63,23 @@ import java.util.concurrent.atomic.AtomicReference;
  * semantically are web origins, they aren't used that way.
  * <p>
  * To interact with a {@link TrustedWebActivityService}, call {@link #execute}.
+ * <p>
+ * At most {@link #DEFAULT_MAX_CONNECTIONS} connections (configurable in the constructor) are kept
+ * open, the least recently used idle one is unbound when that number is exceeded. A connection is
+ * also unbound if it hasn't been used for {@link #DEFAULT_IDLE_TIMEOUT_MS}.
  */
 public class TrustedWebActivityServiceConnectionManager {
     private static final String TAG = "TWAConnectionManager";
+    /** The SharedPreferences file the verified packages used to be stored in. */
     private static final String PREFS_FILE = "TrustedWebActivityVerifiedPackages";
+    /** Verified packages are stored as sets under this prefix followed by the origin. */
+    private static final String STORE_KEY_PREFIX = PREFS_FILE + "/";
+
+    /** The default maximum number of simultaneously bound {@link TrustedWebActivityService}s. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+    /** The default time after which an unused connection is unbound. */
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(1);
 
     /**
      * A callback to be executed once a connection to a {@link TrustedWebActivityService} is open.
@@ -75,6 +99,9 @@ public class TrustedWebActivityServiceConnectionManager {
         void onConnected(@Nullable TrustedWebActivityServiceWrapper service) throws RemoteException;
     }
 
+    /** Used by {@link #prewarm} to open a connection without using it. */
+    private static final ExecutionCallback NO_OP_CALLBACK = service -> {};
+
     /** The callback used internally that will wrap an ExecutionCallback. */
     private interface WrappedCallback {
         void onConnected(@Nullable TrustedWebActivityServiceWrapper service);
@@ -82,12 +109,23 @@ public class TrustedWebActivityServiceConnectionManager {
 
     /**
      * Holds a connection to a TrustedWebActivityService.
-     * It should only be used on the UI Thread.
+     * It is safe to be used on any thread.
      */
     private class Connection implements ServiceConnection {
-        private TrustedWebActivityServiceWrapper mService;
-        private List<WrappedCallback> mCallbacks = new LinkedList<>();
+        @Nullable
+        private volatile TrustedWebActivityServiceWrapper mService;
+        private final List<WrappedCallback> mCallbacks = new LinkedList<>();
         private final Uri mScope;
+        /** The number of callbacks that have been added but haven't finished running yet. */
+        private final AtomicInteger mCallbacksInFlight = new AtomicInteger();
+        private final Runnable mIdleUnbindRunnable = this::onIdleTimeout;
+        /** Runs the callbacks for this connection in order, see {@link #wrapCallback}. */
+        private final SerialExecutor mCallbackExecutor = new SerialExecutor(mExecutor);
+
+        /** Guarded by this. */
+        private boolean mBound;
+        /** Guarded by this. */
+        private boolean mClosed;
 
         public Connection(Uri scope) {
             mScope = scope;
@@ -100,92 +138,365 @@ public class TrustedWebActivityServiceConnectionManager {
         /** This method will be called on the UI Thread by the Android Framework. */
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
-            mService = new TrustedWebActivityServiceWrapper(
-                    ITrustedWebActivityService.Stub.asInterface(iBinder), componentName);
-            for (WrappedCallback callback : mCallbacks) {
-                callback.onConnected(mService);
+            // Callbacks are dispatched while holding the lock so that they keep their order
+            // relative to the ones added concurrently.
+            synchronized (this) {
+                mService = new TrustedWebActivityServiceWrapper(
+                        ITrustedWebActivityService.Stub.asInterface(iBinder), componentName,
+                        mContext);
+                for (WrappedCallback callback : mCallbacks) {
+                    callback.onConnected(mService);
+                }
+                mCallbacks.clear();
             }
-            mCallbacks.clear();
         }
 
         /** This method will be called on the UI Thread by the Android Framework. */
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
             mService = null;
-            mConnections.remove(mScope);
+            removeConnection(this);
+            close();
         }
 
-        public void addCallback(WrappedCallback callback) {
-            if (mService == null) {
-                mCallbacks.add(callback);
-            } else {
-                callback.onConnected(mService);
+        /**
+         * Runs the callback once connected.
+         * @return Whether the callback was added, false if the connection has been closed by
+         *         another thread in the meantime. The callback should be run on a new connection
+         *         then.
+         */
+        public boolean addCallback(ExecutionCallback callback) {
+            WrappedCallback wrappedCallback = wrapCallback(callback, this);
+            synchronized (this) {
+                if (mClosed) return false;
+                // Counted under the lock, so that closeIfIdle() can't close the connection once
+                // the callback has been added.
+                mCallbacksInFlight.incrementAndGet();
+                if (mService == null) {
+                    mCallbacks.add(wrappedCallback);
+                } else {
+                    wrappedCallback.onConnected(mService);
+                }
+            }
+            scheduleIdleUnbind();
+            return true;
+        }
+
+        /** Called when a callback passed to {@link #addCallback} has been run. */
+        void onCallbackFinished() {
+            mCallbacksInFlight.decrementAndGet();
+            scheduleIdleUnbind();
+        }
+
+        boolean isBusy() {
+            return mCallbacksInFlight.get() > 0;
+        }
+
+        /** Returns the number of callbacks that are waiting to be run. */
+        int getQueueDepth() {
+            synchronized (this) {
+                return mCallbacks.size() + mCallbackExecutor.getQueueDepth();
             }
         }
+
+        /** Binds to the service. Should be called on a background thread. */
+        void bind(Intent bindServiceIntent) {
+            boolean bound;
+            try {
+                // We can pass this to bindService here on a background thread because bindService
+                // assures us it will use this on the UI thread.
+                bound = mContext.bindService(bindServiceIntent, this, Context.BIND_AUTO_CREATE);
+                if (!bound) mContext.unbindService(this);
+            } catch (SecurityException e) {
+                Log.w(TAG, "SecurityException while binding.", e);
+                bound = false;
+            }
+
+            if (!bound) {
+                // The cached service may be gone, resolve it again next time.
+                mScopeResolutionCache.clear();
+                removeConnection(this);
+                close();
+                return;
+            }
+
+            boolean unbindNow;
+            synchronized (this) {
+                mBound = !mClosed;
+                unbindNow = mClosed;
+            }
+            if (unbindNow) mContext.unbindService(this);
+        }
+
+        /**
+         * Unbinds from the service (or makes sure it is unbound as soon as binding completes) and
+         * runs any callbacks waiting for the connection with a null service. The Connection should
+         * be removed from the connections table before calling this.
+         */
+        void close() {
+            close(false);
+        }
+
+        /**
+         * Same as {@link #close}, but only closes the connection if no callbacks are in flight.
+         * Used to expire and evict connections, which mustn't fail the callbacks added to them
+         * concurrently.
+         * @return Whether the connection is closed.
+         */
+        boolean closeIfIdle() {
+            return close(true);
+        }
+
+        private boolean close(boolean onlyIfIdle) {
+            boolean unbindNow;
+            synchronized (this) {
+                if (mClosed) return true;
+                if (onlyIfIdle && isBusy()) return false;
+                mClosed = true;
+                unbindNow = mBound;
+                mBound = false;
+                for (WrappedCallback callback : mCallbacks) {
+                    callback.onConnected(null);
+                }
+                mCallbacks.clear();
+            }
+            mHandler.removeCallbacks(mIdleUnbindRunnable);
+            if (unbindNow) mContext.unbindService(this);
+            return true;
+        }
+
+        private void scheduleIdleUnbind() {
+            mHandler.removeCallbacks(mIdleUnbindRunnable);
+            mHandler.postDelayed(mIdleUnbindRunnable, mIdleTimeoutMs);
+        }
+
+        private void onIdleTimeout() {
+            if (!closeIfIdle()) {
+                scheduleIdleUnbind();
+                return;
+            }
+            removeConnection(this);
+        }
     }
 
     private final Context mContext;
-    /** Map from ServiceWorker scope to Connection. */
-    private Map<Uri, Connection> mConnections = new HashMap<>();
+    private final int mMaxConnections;
+    private final long mIdleTimeoutMs;
+    /** Used for binding and running callbacks, the latter serially for each connection. */
+    private final Executor mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
 
-    private static AtomicReference<SharedPreferences> sSharedPreferences = new AtomicReference<>();
+    /**
+     * Map from ServiceWorker scope to Connection, in the order of least recent use.
+     * Guarded by itself.
+     */
+    private final LinkedHashMap<Uri, Connection> mConnections =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    private final ScopeResolutionCache mScopeResolutionCache = new ScopeResolutionCache();
+
+    /**
+     * In-memory copy of the persisted map from origin to verified packages. Neither the map nor
+     * the sets in it are modified, instead the whole map is replaced on every change. Null until
+     * the store has been loaded.
+     */
+    @Nullable
+    private static volatile Map<String, Set<String>> sVerifiedPackages;
+    private static final Object sVerifiedPackagesLock = new Object();
+
+    /** Guarded by the class. */
+    private static boolean sPackageChangeReceiverRegistered;
+    /** Guarded by the class. */
+    @Nullable
+    private static Executor sDefaultExecutor;
 
     /**
      * Gets the verified packages for the given origin. |origin| may be null, in which case this
-     * method call will just trigger caching the Preferences.
+     * method call will just trigger loading the store.
      *
      * This is safe to be called on any thread, however it may hit disk.
      *
-     * @param context A Context to be used for accessing SharedPreferences.
+     * @param context A Context to be used for accessing the store.
      * @param origin The origin that was previously used with {@link #registerClient}.
      * @return A set of package names. This set is safe to be modified.
      */
     public static Set<String> getVerifiedPackages(Context context, String origin) {
-        // Loading preferences is on the critical path for this class - we need to synchronously
+        Map<String, Set<String>> verifiedPackages = getVerifiedPackagesIndex(context);
+        return origin == null ? null :
+                new HashSet<>(lookUpVerifiedPackages(verifiedPackages, origin));
+    }
+
+    /**
+     * Same as {@link #getVerifiedPackages}, but returns an unmodifiable set without copying it.
+     * Only hits the disk if the store hasn't been loaded yet.
+     */
+    private static Set<String> getVerifiedPackagesUnmodifiable(Context context, String origin) {
+        return lookUpVerifiedPackages(getVerifiedPackagesIndex(context), origin);
+    }
+
+    private static Set<String> lookUpVerifiedPackages(Map<String, Set<String>> verifiedPackages,
+            String origin) {
+        Set<String> packages = verifiedPackages.get(origin);
+        return packages == null ? Collections.<String>emptySet() : packages;
+    }
+
+    private static Map<String, Set<String>> getVerifiedPackagesIndex(Context context) {
+        Map<String, Set<String>> verifiedPackages = sVerifiedPackages;
+        if (verifiedPackages != null) return verifiedPackages;
+
+        // If the background load has started, this waits for it rather than reading again.
+        synchronized (sVerifiedPackagesLock) {
+            if (sVerifiedPackages == null) sVerifiedPackages = loadVerifiedPackages(context);
+            return sVerifiedPackages;
+        }
+    }
+
+    private static Map<String, Set<String>> loadVerifiedPackages(Context context) {
+        // Loading the store is on the critical path for this class - we need to synchronously
         // inform the client whether or not an notification can be handled by a TWA.
-        // I considered loading the preferences into a cache on a background thread when this class
+        // I considered loading the store into a cache on a background thread when this class
         // was created, but ultimately if that load hadn't completed by the time {@link #execute} or
         // {@link #registerClient} were called, we'd still need to block for it to complete.
-        // Therefore we attempt to asynchronously load the preferences in the constructor, but if
-        // they aren't loaded by the time they are needed, we disable StrictMode and read them on
-        // the main thread.
+        // Therefore we attempt to asynchronously load the store in the constructor, but if it
+        // isn't loaded by the time it is needed, we disable StrictMode and read it on the main
+        // thread. This happens at most once per process.
+        //
+        // Migrating the legacy SharedPreferences writes to disk, so on the main thread they are
+        // only read here and migrated on a background thread.
         StrictMode.ThreadPolicy policy = StrictMode.allowThreadDiskReads();
 
         try {
-            if (sSharedPreferences.get() == null) {
-                sSharedPreferences.compareAndSet(null,
-                        context.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE));
+            Context appContext = context.getApplicationContext();
+            KeyValueStore store = KeyValueStore.getInstance(appContext);
+            Map<String, Set<String>> verifiedPackages = new HashMap<>();
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                readLegacyVerifiedPackages(appContext, verifiedPackages);
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(() ->
+                        store.migrateFromSharedPreferences(appContext, PREFS_FILE, PREFS_FILE));
+            } else {
+                store.migrateFromSharedPreferences(appContext, PREFS_FILE, PREFS_FILE);
             }
 
-            return origin == null ? null :
-                    new HashSet<>(sSharedPreferences.get().getStringSet(origin,
-                            Collections.<String>emptySet()));
+            for (Map.Entry<String, Object> entry : store.getAll(STORE_KEY_PREFIX).entrySet()) {
+                if (!(entry.getValue() instanceof Set)) continue;
+                @SuppressWarnings("unchecked")
+                Set<String> packages = (Set<String>) entry.getValue();
+                verifiedPackages.put(entry.getKey(), packages);
+            }
+            return Collections.unmodifiableMap(verifiedPackages);
         } finally {
             StrictMode.setThreadPolicy(policy);
         }
     }
 
     /**
-     * Creates a TrustedWebActivityServiceConnectionManager.
-     * @param context A Context used for accessing SharedPreferences.
+     * Adds the verified packages from the SharedPreferences the store is migrated from, if they
+     * are still there, to |verifiedPackages|.
+     */
+    private static void readLegacyVerifiedPackages(Context context,
+            Map<String, Set<String>> verifiedPackages) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (!(entry.getValue() instanceof Set)) continue;
+            Set<String> packages = new HashSet<>();
+            for (Object packageName : (Set<?>) entry.getValue()) {
+                packages.add((String) packageName);
+            }
+            verifiedPackages.put(entry.getKey(), Collections.unmodifiableSet(packages));
+        }
+    }
+
+    /**
+     * Creates a TrustedWebActivityServiceConnectionManager with the default connection limits.
+     * @param context A Context used for accessing the store.
      */
     public TrustedWebActivityServiceConnectionManager(Context context) {
+        this(context, DEFAULT_MAX_CONNECTIONS, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * Creates a TrustedWebActivityServiceConnectionManager that runs its background work on a
+     * thread pool shared by all the instances that don't specify an Executor.
+     * @param context A Context used for accessing the store.
+     * @param maxConnections The maximum number of connections to keep open. It may be exceeded
+     *                       while all the connections are in use.
+     * @param idleTimeoutMs The time after which a connection that hasn't been used is unbound.
+     */
+    public TrustedWebActivityServiceConnectionManager(Context context, int maxConnections,
+            long idleTimeoutMs) {
+        this(context, maxConnections, idleTimeoutMs, getDefaultExecutor());
+    }
+
+    /**
+     * Callbacks may block, e.g. on IPC, so unlike {@link AsyncTask#THREAD_POOL_EXECUTOR} the pool
+     * isn't bounded and never rejects a task. Idle threads are stopped after a while.
+     */
+    private static synchronized Executor getDefaultExecutor() {
+        if (sDefaultExecutor == null) sDefaultExecutor = Executors.newCachedThreadPool();
+        return sDefaultExecutor;
+    }
+
+    /**
+     * Creates a TrustedWebActivityServiceConnectionManager.
+     * @param context A Context used for accessing the store.
+     * @param maxConnections The maximum number of connections to keep open. It may be exceeded
+     *                       while all the connections are in use.
+     * @param idleTimeoutMs The time after which a connection that hasn't been used is unbound.
+     * @param executor The Executor to bind to services and run {@link ExecutionCallback}s on.
+     *                 Callbacks for a single scope are run one at a time, in the order
+     *                 {@link #execute} was called, so that e.g. a notification isn't cancelled
+     *                 before it's shown. Callbacks for different scopes may run in parallel.
+     */
+    public TrustedWebActivityServiceConnectionManager(Context context, int maxConnections,
+            long idleTimeoutMs, Executor executor) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be positive");
+        }
         mContext = context.getApplicationContext();
+        mMaxConnections = maxConnections;
+        mIdleTimeoutMs = idleTimeoutMs;
+        mExecutor = executor;
+
+        registerPackageChangeReceiver(mContext);
 
-        // Asynchronously try to load (and therefore cache) the preferences.
-        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+        // Asynchronously try to load (and therefore cache) the store.
+        mExecutor.execute(new Runnable() {
             @Override
             public void run() {
-                getVerifiedPackages(mContext, null);
+                getVerifiedPackagesIndex(mContext);
             }
         });
     }
 
-    private static WrappedCallback wrapCallback(final ExecutionCallback callback) {
+    /**
+     * Installing, updating or removing apps may change which Service handles which scope. A
+     * single receiver is registered for the process, so that it doesn't need to be unregistered
+     * when a connection manager is no longer used.
+     */
+    private static synchronized void registerPackageChangeReceiver(Context appContext) {
+        if (sPackageChangeReceiverRegistered) return;
+        IntentFilter packageChangeFilter = new IntentFilter();
+        packageChangeFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageChangeFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageChangeFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageChangeFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageChangeFilter.addDataScheme("package");
+        appContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                ScopeResolutionCache.onPackagesChanged();
+                TrustedWebActivityServiceWrapper.onPackagesChanged();
+            }
+        }, packageChangeFilter);
+        sPackageChangeReceiverRegistered = true;
+    }
+
+    private static WrappedCallback wrapCallback(final ExecutionCallback callback,
+            final Connection connection) {
         return new WrappedCallback() {
             @Override
             public void onConnected(@Nullable final TrustedWebActivityServiceWrapper service) {
-                AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                connection.mCallbackExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
                         try {
@@ -197,6 +508,8 @@ public class TrustedWebActivityServiceConnectionManager {
                         } catch (RemoteException | RuntimeException e) {
                             Log.w(TAG,
                                     "Exception while trying to use TrustedWebActivityService.", e);
+                        } finally {
+                            connection.onCallbackFinished();
                         }
                     }
                 });
@@ -212,17 +525,22 @@ public class TrustedWebActivityServiceConnectionManager {
      * {@link Intent#ACTION_VIEW} Intent with the {@code scope} as data. The first of the resolved
      * packages that registered (through {@link #registerClient}) to {@code origin} will be chosen.
      * Finally, an Intent with the action {@link TrustedWebActivityService#INTENT_ACTION} will be
-     * used to find the Service.
+     * used to find the Service. The Service found is cached for the scope (and any scope nested
+     * within it) until apps are installed, updated or removed, or {@link #registerClient} is
+     * called.
      * <p>
-     * This method should be called on the UI thread.
+     * This method can be called on any thread. It only reads the disk if the verified packages
+     * haven't finished loading in the background since this object was created, in which case
+     * it waits for them, as it needs them to return a result.
      *
      * @param scope The scope used in an Intent to find packages that may have a
      *              {@link TrustedWebActivityService}.
      * @param origin An origin that the {@link TrustedWebActivityService} package must be registered
      *               to.
      * @param callback A {@link ExecutionCallback} that will be run with a connection.
-     *                 It will be run on a background thread from the ThreadPool as most methods
-     *                 from {@link TrustedWebActivityServiceWrapper} require this.
+     *                 It will be run on a background thread as most methods from
+     *                 {@link TrustedWebActivityServiceWrapper} require this, after the callbacks
+     *                 previously passed in for the same scope have finished.
      *                 Any {@link RemoteException} or {@link RuntimeException} exceptions thrown by
      *                 the callback will be swallowed.
      *                 This is to allow users to deal with exceptions thrown by
@@ -230,55 +548,133 @@ public class TrustedWebActivityServiceConnectionManager {
      *                 gracefully if they don't.
      * @return Whether a {@link TrustedWebActivityService} was found.
      */
-    @SuppressLint("StaticFieldLeak")
     public boolean execute(final Uri scope, String origin, final ExecutionCallback callback) {
-        final WrappedCallback wrappedCallback = wrapCallback(callback);
+        // A connection may be closed by another thread, e.g. because it has been idle for too
+        // long, just as the callback is added to it. The callback is then added to a new one.
+        while (true) {
+            // If we have an existing connection, use it.
+            Connection connection = getConnection(scope);
+            if (connection != null) {
+                if (connection.addCallback(callback)) return true;
+                removeConnection(connection);
+                continue;
+            }
+
+            // Check that this is a notification we want to handle.
+            final Intent bindServiceIntent = createServiceIntent(mContext, scope, origin, true);
+            if (bindServiceIntent == null) return false;
+
+            // Another thread may have created a connection in the meantime.
+            final Connection newConnection = new Connection(scope);
+            List<Connection> evictedConnections;
+            synchronized (mConnections) {
+                connection = mConnections.get(scope);
+                if (connection == null) mConnections.put(scope, newConnection);
+                evictedConnections = trimConnections(newConnection);
+            }
+            // A connection that has been taken into use since it was evicted is left open until
+            // it expires.
+            for (Connection evicted : evictedConnections) evicted.closeIfIdle();
+
+            if (connection != null) continue;
+            if (!newConnection.addCallback(callback)) continue;
+
+            // Create a new connection.
+            mExecutor.execute(() -> newConnection.bind(bindServiceIntent));
 
-        // If we have an existing connection, use it.
-        Connection connection = mConnections.get(scope);
-        if (connection != null) {
-            connection.addCallback(wrappedCallback);
             return true;
         }
+    }
 
-        // Check that this is a notification we want to handle.
-        final Intent bindServiceIntent = createServiceIntent(mContext, scope, origin, true);
-        if (bindServiceIntent == null) return false;
+    @Nullable
+    private Connection getConnection(Uri scope) {
+        synchronized (mConnections) {
+            return mConnections.get(scope);
+        }
+    }
 
-        final Connection newConnection = new Connection(scope);
-        newConnection.addCallback(wrappedCallback);
+    private void removeConnection(Connection connection) {
+        synchronized (mConnections) {
+            if (mConnections.get(connection.mScope) == connection) {
+                mConnections.remove(connection.mScope);
+            }
+        }
+    }
 
-        // Create a new connection.
-        new AsyncTask<Void, Void, Connection>() {
-            @Override
-            protected Connection doInBackground(Void... voids) {
-                try {
-                    // We can pass newConnection to bindService here on a background thread because
-                    // bindService assures us it will use newConnection on the UI thread.
-                    if (mContext.bindService(bindServiceIntent, newConnection,
-                            Context.BIND_AUTO_CREATE)) {
-                        return newConnection;
-                    }
+    /**
+     * Removes least recently used connections that aren't in use until there are no more than
+     * {@link #mMaxConnections} of them. {@code newConnection} is never removed. Returns the
+     * removed connections, which must be closed by the caller with {@link Connection#closeIfIdle}.
+     */
+    private List<Connection> trimConnections(Connection newConnection) {
+        List<Connection> evicted = new ArrayList<>();
+        int excess = mConnections.size() - mMaxConnections;
+        Iterator<Connection> iterator = mConnections.values().iterator();
+        while (excess > 0 && iterator.hasNext()) {
+            Connection connection = iterator.next();
+            if (connection == newConnection || connection.isBusy()) continue;
+            iterator.remove();
+            evicted.add(connection);
+            excess--;
+        }
+        return evicted;
+    }
 
-                    mContext.unbindService(newConnection);
-                    return null;
-                } catch (SecurityException e) {
-                    Log.w(TAG, "SecurityException while binding.", e);
-                    return null;
-                }
-            }
+    /**
+     * Starts connecting to the {@link TrustedWebActivityService} for the given scope and origin
+     * ahead of time, e.g. when a push message arrives, before the notification is built. A
+     * following call to {@link #execute} for the scope will then use the established connection.
+     * The connection is subject to the same idle timeout as any other.
+     * <p>
+     * The Service is looked up and bound on a background thread, so this method can be called on
+     * any thread and returns immediately.
+     *
+     * @param scope The scope used in an Intent to find packages that may have a
+     *              {@link TrustedWebActivityService}.
+     * @param origin An origin that the {@link TrustedWebActivityService} package must be registered
+     *               to.
+     */
+    public void prewarm(final Uri scope, final String origin) {
+        if (getConnection(scope) != null) return;
+        mExecutor.execute(() -> execute(scope, origin, NO_OP_CALLBACK));
+    }
 
-            @Override
-            protected void onPostExecute(Connection newConnection) {
-                if (newConnection == null) {
-                    wrappedCallback.onConnected(null);
-                } else {
-                    mConnections.put(scope, newConnection);
-                }
-            }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    /**
+     * Returns the number of {@link ExecutionCallback}s passed to {@link #execute} for the given
+     * scope that haven't started running yet, either because the connection is still being
+     * established or because earlier callbacks for the scope are still running.
+     */
+    public int getQueueDepth(Uri scope) {
+        Connection connection = getConnection(scope);
+        return connection == null ? 0 : connection.getQueueDepth();
+    }
+
+    /** Returns whether a connection for the given scope is open or being opened. */
+    @VisibleForTesting
+    boolean hasConnection(Uri scope) {
+        return getConnection(scope) != null;
+    }
 
-        return true;
+    /** Returns whether callbacks for the given scope are waiting to be run or running. */
+    @VisibleForTesting
+    boolean isConnectionBusy(Uri scope) {
+        Connection connection = getConnection(scope);
+        return connection != null && connection.isBusy();
+    }
+
+    /**
+     * Returns the sum of {@link #getQueueDepth} for all scopes.
+     */
+    public int getTotalQueueDepth() {
+        List<Connection> connections;
+        synchronized (mConnections) {
+            connections = new ArrayList<>(mConnections.values());
+        }
+        int depth = 0;
+        for (Connection connection : connections) {
+            depth += connection.getQueueDepth();
+        }
+        return depth;
     }
 
     /**
@@ -286,7 +682,7 @@ public class TrustedWebActivityServiceConnectionManager {
      * origin. The value will be the same as that returned from {@link #execute} so calling that
      * and checking the return may be more convenient.
      *
-     * This method should be called on the UI thread.
+     * This method can be called on any thread, with the same caveat as {@link #execute}.
      *
      * @param scope The scope used in an Intent to find packages that may have a
      *              {@link TrustedWebActivityService}.
@@ -296,7 +692,7 @@ public class TrustedWebActivityServiceConnectionManager {
      */
     public boolean serviceExistsForScope(Uri scope, String origin) {
         // If we have an existing connection, we can deal with the scope.
-        if (mConnections.get(scope) != null) return true;
+        if (getConnection(scope) != null) return true;
 
         return createServiceIntent(mContext, scope, origin, false) != null;
     }
@@ -305,10 +701,14 @@ public class TrustedWebActivityServiceConnectionManager {
      * Unbinds all open connections to Trusted Web Activity clients.
      */
     void unbindAllConnections() {
-        for (Connection connection : mConnections.values()) {
-            mContext.unbindService(connection);
+        List<Connection> connections;
+        synchronized (mConnections) {
+            connections = new ArrayList<>(mConnections.values());
+            mConnections.clear();
+        }
+        for (Connection connection : connections) {
+            connection.close();
         }
-        mConnections.clear();
     }
 
     /**
@@ -318,9 +718,33 @@ public class TrustedWebActivityServiceConnectionManager {
      */
     private @Nullable Intent createServiceIntent(Context appContext, Uri scope, String origin,
             boolean shouldLog) {
-        Set<String> possiblePackages = getVerifiedPackages(appContext, origin);
+        Map<String, Set<String>> verifiedPackages = getVerifiedPackagesIndex(appContext);
+
+        ComponentName service;
+        ScopeResolutionCache.Result cachedResult =
+                mScopeResolutionCache.get(scope, origin, verifiedPackages);
+        if (cachedResult != null) {
+            service = cachedResult.service;
+        } else {
+            int generation = mScopeResolutionCache.getGeneration();
+            service = resolveService(appContext, scope, origin,
+                    lookUpVerifiedPackages(verifiedPackages, origin), shouldLog);
+            mScopeResolutionCache.put(scope, origin, generation, service);
+        }
+
+        if (service == null) return null;
+
+        Intent finalIntent = new Intent();
+        finalIntent.setComponent(service);
+        return finalIntent;
+    }
 
-        if (possiblePackages == null || possiblePackages.size() == 0) {
+    /**
+     * Finds the Service for the given scope and verified origin by querying the PackageManager.
+     */
+    private static @Nullable ComponentName resolveService(Context appContext, Uri scope,
+            String origin, Set<String> possiblePackages, boolean shouldLog) {
+        if (possiblePackages.isEmpty()) {
             return null;
         }
 
@@ -364,27 +788,33 @@ public class TrustedWebActivityServiceConnectionManager {
         if (shouldLog) {
             Log.i(TAG, "Found " + info.serviceInfo.name + " to handle request for " + origin);
         }
-        Intent finalIntent = new Intent();
-        finalIntent.setComponent(new ComponentName(resolvedPackage, info.serviceInfo.name));
-        return finalIntent;
+        return new ComponentName(resolvedPackage, info.serviceInfo.name);
     }
 
     /**
-     * Registers (and persists) a package to be used for an origin. This information is persisted
-     * in SharedPreferences. Although this method can be called on any thread, it may read
-     * SharedPreferences and hit the disk, so call it on a background thread if possible.
-     * @param context A Context to access SharedPreferences.
+     * Registers (and persists) a package to be used for an origin. Although this method can be
+     * called on any thread, it may hit the disk if the store hasn't been loaded yet, so call it on
+     * a background thread if possible. The registration takes effect immediately, while writing it
+     * to disk happens asynchronously.
+     * @param context A Context to access the store.
      * @param origin The origin for which the package is relevant.
      * @param clientPackage The packages to register.
      */
     public static void registerClient(Context context, String origin, String clientPackage) {
-        Set<String> possiblePackages = getVerifiedPackages(context, origin);
-        possiblePackages.add(clientPackage);
-
-        // sSharedPreferences won't be null after a call to getVerifiedPackages.
-        SharedPreferences.Editor editor = sSharedPreferences.get().edit();
-        editor.putStringSet(origin, possiblePackages);
-        editor.apply();
+        synchronized (sVerifiedPackagesLock) {
+            Map<String, Set<String>> verifiedPackages = getVerifiedPackagesIndex(context);
+            Set<String> possiblePackages = lookUpVerifiedPackages(verifiedPackages, origin);
+            if (possiblePackages.contains(clientPackage)) return;
+
+            Set<String> newPackages = new HashSet<>(possiblePackages);
+            newPackages.add(clientPackage);
+            Map<String, Set<String>> newVerifiedPackages = new HashMap<>(verifiedPackages);
+            newVerifiedPackages.put(origin, Collections.unmodifiableSet(newPackages));
+            sVerifiedPackages = Collections.unmodifiableMap(newVerifiedPackages);
+
+            // The store has been loaded by getVerifiedPackagesIndex, so this doesn't hit the disk.
+            KeyValueStore.getInstance(context).putStringSet(STORE_KEY_PREFIX + origin, newPackages);
+        }
     }
 
     // TODO(peconn): Do we want to be able to unregister a client? To wipe all clients?
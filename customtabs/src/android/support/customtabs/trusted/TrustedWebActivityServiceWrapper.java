@@ -18,11 +18,23 @@ package android.support.customtabs.trusted;
 
 import android.app.Notification;
 import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Parcelable;
 import android.os.RemoteException;
 import android.service.notification.StatusBarNotification;
 import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * TrustedWebActivityServiceWrapper is used by a Trusted Web Activity provider app to wrap calls to
@@ -46,18 +58,71 @@ public class TrustedWebActivityServiceWrapper {
             "android.support.customtabs.trusted.CHANNEL_NAME";
     private static final String KEY_ACTIVE_NOTIFICATIONS =
             "android.support.customtabs.trusted.ACTIVE_NOTIFICATIONS";
+    private static final String KEY_BATCH =
+            "android.support.customtabs.trusted.BATCH";
+    private static final String KEY_TAG_PREFIX =
+            "android.support.customtabs.trusted.TAG_PREFIX";
+    private static final String KEY_OFFSET =
+            "android.support.customtabs.trusted.OFFSET";
+    private static final String KEY_LIMIT =
+            "android.support.customtabs.trusted.LIMIT";
 
     // Outputs.
     private static final String KEY_NOTIFICATION_SUCCESS =
             "android.support.customtabs.trusted.NOTIFICATION_SUCCESS";
+    private static final String KEY_BATCH_SUCCESS =
+            "android.support.customtabs.trusted.BATCH_SUCCESS";
+    private static final String KEY_DESCRIPTOR_TAGS =
+            "android.support.customtabs.trusted.DESCRIPTOR_TAGS";
+    private static final String KEY_DESCRIPTOR_IDS =
+            "android.support.customtabs.trusted.DESCRIPTOR_IDS";
+    private static final String KEY_DESCRIPTOR_CHANNEL_IDS =
+            "android.support.customtabs.trusted.DESCRIPTOR_CHANNEL_IDS";
+    private static final String KEY_DESCRIPTOR_POST_TIMES =
+            "android.support.customtabs.trusted.DESCRIPTOR_POST_TIMES";
+
+    /** The maximum total size of the small icons cached by {@link #sSmallIconCache}. */
+    private static final int SMALL_ICON_CACHE_SIZE_BYTES = 1024 * 1024;
+
+    /**
+     * Small icons of Trusted Web Activity clients, keyed by {@link #getSmallIconCacheKey}. An app
+     * can only change its icon by being updated, so the icon is fetched once per app version.
+     */
+    private static final LruCache<String, Bitmap> sSmallIconCache =
+            new LruCache<String, Bitmap>(SMALL_ICON_CACHE_SIZE_BYTES) {
+                @Override
+                protected int sizeOf(String key, Bitmap value) {
+                    return value.getByteCount();
+                }
+            };
+
+    /**
+     * Map from package name to its key in {@link #sSmallIconCache}, so that the PackageManager
+     * isn't queried for every icon. Guarded by itself, cleared by {@link #onPackagesChanged}.
+     */
+    private static final Map<String, String> sSmallIconCacheKeys = new HashMap<>();
+    /** Incremented whenever {@link #sSmallIconCacheKeys} is cleared. Guarded by the map. */
+    private static int sSmallIconCacheKeysGeneration;
 
     private final ITrustedWebActivityService mService;
     private final ComponentName mComponentName;
+    @Nullable
+    private final Context mContext;
 
     TrustedWebActivityServiceWrapper(ITrustedWebActivityService service,
             ComponentName componentName) {
+        this(service, componentName, null);
+    }
+
+    /**
+     * @param context If not null, it's used to find the version of the client app, so that the
+     *                small icon bitmap is cached.
+     */
+    TrustedWebActivityServiceWrapper(ITrustedWebActivityService service,
+            ComponentName componentName, @Nullable Context context) {
         mService = service;
         mComponentName = componentName;
+        mContext = context == null ? null : context.getApplicationContext();
     }
 
     /**
@@ -101,6 +166,60 @@ public class TrustedWebActivityServiceWrapper {
         mService.cancelNotification(args);
     }
 
+    /**
+     * Requests several notifications be shown, in a single IPC call if the Service supports it.
+     * @param notifications The notifications along with their tags, ids and channel names.
+     * @return For each notification, whether it was shown. A notification isn't shown if
+     *         notifications or its channel are blocked for the client app.
+     * @throws RemoteException If the Service dies while responding to the request.
+     * @throws SecurityException If verification with the TrustedWebActivityService fails.
+     */
+    public boolean[] notify(List<NotifyNotificationArgs> notifications) throws RemoteException {
+        Bundle result = mService.notifyNotificationsWithChannel(
+                new BatchArgs(toBundles(notifications)).toBundle());
+        if (result != null) return BatchResultArgs.fromBundle(result).successes;
+
+        // The Service was built with an older version of this library, fall back to one by one.
+        boolean[] successes = new boolean[notifications.size()];
+        for (int i = 0; i < successes.length; i++) {
+            NotifyNotificationArgs args = notifications.get(i);
+            successes[i] = notify(args.platformTag, args.platformId, args.notification,
+                    args.channelName);
+        }
+        return successes;
+    }
+
+    /**
+     * Requests several notifications be cancelled, in a single IPC call if the Service supports
+     * it.
+     * @param notifications The tags and ids of the notifications.
+     * @return For each notification, whether it was cancelled without an error.
+     * @throws RemoteException If the Service dies while responding to the request.
+     * @throws SecurityException If verification with the TrustedWebActivityService fails.
+     */
+    public boolean[] cancel(List<CancelNotificationArgs> notifications) throws RemoteException {
+        Bundle result = mService.cancelNotifications(
+                new BatchArgs(toBundles(notifications)).toBundle());
+        if (result != null) return BatchResultArgs.fromBundle(result).successes;
+
+        // The Service was built with an older version of this library, fall back to one by one.
+        boolean[] successes = new boolean[notifications.size()];
+        for (int i = 0; i < successes.length; i++) {
+            CancelNotificationArgs args = notifications.get(i);
+            cancel(args.platformTag, args.platformId);
+            successes[i] = true;
+        }
+        return successes;
+    }
+
+    private static Bundle[] toBundles(List<? extends BundleConvertible> items) {
+        Bundle[] bundles = new Bundle[items.size()];
+        for (int i = 0; i < bundles.length; i++) {
+            bundles[i] = items.get(i).toBundle();
+        }
+        return bundles;
+    }
+
     /**
      * Gets the notifications shown by the Trusted Web Activity client. Can only be called on
      * Android M and above.
@@ -114,6 +233,30 @@ public class TrustedWebActivityServiceWrapper {
         return ActiveNotificationsArgs.fromBundle(notifications).notifications;
     }
 
+    /**
+     * Gets lightweight descriptions of the notifications shown by the Trusted Web Activity client,
+     * without transferring the notifications themselves. The notifications are ordered by post
+     * time, so that the results can be fetched in pages. Can only be called on Android M and
+     * above.
+     * @param tagPrefix If not null, only notifications with tags starting with it are returned.
+     * @param offset The number of matching notifications to skip.
+     * @param limit The maximum number of notifications to return. If fewer are returned, there are
+     *              no more matching notifications.
+     * @return The matching notifications.
+     * @throws RemoteException If the Service dies while responding to the request.
+     * @throws SecurityException If verification with the TrustedWebActivityService fails.
+     * @throws IllegalStateException If called on Android pre-M.
+     */
+    public List<NotificationDescriptor> getActiveNotificationDescriptors(
+            @Nullable String tagPrefix, int offset, int limit) throws RemoteException {
+        Bundle result = mService.getActiveNotificationDescriptors(
+                new NotificationQueryArgs(tagPrefix, offset, limit).toBundle());
+        if (result != null) return NotificationDescriptorsArgs.fromBundle(result).descriptors;
+
+        // The Service was built with an older version of this library, filter on our side.
+        return NotificationDescriptor.query(getActiveNotifications(), tagPrefix, offset, limit);
+    }
+
     /**
      * Requests an Android resource id to be used for the notification small icon.
      * @return An Android resource id for the notification small icon. -1 if non found.
@@ -128,14 +271,70 @@ public class TrustedWebActivityServiceWrapper {
      * Requests a bitmap of a small icon to be used for the notification
      * small icon. The bitmap is decoded on the side of Trusted Web Activity client using
      * the resource id from {@link TrustedWebActivityService#getSmallIconId}.
+     * <p>
+     * The bitmap is cached and shared between callers, so it must not be modified or recycled.
      * @return {@link SmallIconData} with both an id and a bitmap
      * @throws RemoteException If the Service dies while responding to the request.
      * @throws SecurityException If verification with the TrustedWebActivityService fails.
      */
     @Nullable
     public Bitmap getSmallIconBitmap() throws RemoteException {
-        return mService.getSmallIconBitmap()
+        String cacheKey = getSmallIconCacheKey();
+        if (cacheKey != null) {
+            Bitmap cachedBitmap = sSmallIconCache.get(cacheKey);
+            if (cachedBitmap != null) return cachedBitmap;
+        }
+
+        Bitmap bitmap = mService.getSmallIconBitmap()
                 .getParcelable(TrustedWebActivityService.KEY_SMALL_ICON_BITMAP);
+        if (cacheKey != null && bitmap != null) {
+            sSmallIconCache.put(cacheKey, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns a key identifying the installed version of the client app, or null if it can't be
+     * determined.
+     */
+    @Nullable
+    private String getSmallIconCacheKey() {
+        if (mContext == null) return null;
+        String packageName = mComponentName.getPackageName();
+        int generation;
+        synchronized (sSmallIconCacheKeys) {
+            String key = sSmallIconCacheKeys.get(packageName);
+            if (key != null) return key;
+            generation = sSmallIconCacheKeysGeneration;
+        }
+
+        String key;
+        try {
+            PackageInfo info = mContext.getPackageManager().getPackageInfo(packageName, 0);
+            // lastUpdateTime changes on reinstalls too, when the version code may stay the same.
+            key = packageName + ":" + info.versionCode + ":" + info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+
+        synchronized (sSmallIconCacheKeys) {
+            // Don't cache a key that may have been read before the package changed.
+            if (generation == sSmallIconCacheKeysGeneration) {
+                sSmallIconCacheKeys.put(packageName, key);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Forgets the installed versions of client apps, should be called when apps are installed,
+     * updated or removed.
+     */
+    static void onPackagesChanged() {
+        synchronized (sSmallIconCacheKeys) {
+            sSmallIconCacheKeys.clear();
+            sSmallIconCacheKeysGeneration++;
+        }
     }
 
     /**
@@ -146,7 +345,64 @@ public class TrustedWebActivityServiceWrapper {
         return mComponentName;
     }
 
-    static class NotifyNotificationArgs {
+    /** Describes an active notification, see {@link #getActiveNotificationDescriptors}. */
+    public static class NotificationDescriptor {
+        @Nullable
+        public final String platformTag;
+        public final int platformId;
+        /** The id of the notification channel, always null before Android O. */
+        @Nullable
+        public final String channelId;
+        /** When the notification was posted, in milliseconds since the epoch. */
+        public final long postTime;
+
+        public NotificationDescriptor(@Nullable String platformTag, int platformId,
+                @Nullable String channelId, long postTime) {
+            this.platformTag = platformTag;
+            this.platformId = platformId;
+            this.channelId = channelId;
+            this.postTime = postTime;
+        }
+
+        /**
+         * Describes the notifications with tags starting with {@code tagPrefix}, ordered by post
+         * time, skipping {@code offset} of them and returning at most {@code limit}.
+         */
+        static List<NotificationDescriptor> query(StatusBarNotification[] notifications,
+                @Nullable String tagPrefix, int offset, int limit) {
+            List<NotificationDescriptor> matching = new ArrayList<>();
+            for (StatusBarNotification notification : notifications) {
+                if (notification == null) continue;
+                String tag = notification.getTag();
+                if (tagPrefix != null && (tag == null || !tag.startsWith(tagPrefix))) continue;
+
+                String channelId = null;
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                    channelId = notification.getNotification().getChannelId();
+                }
+                matching.add(new NotificationDescriptor(tag, notification.getId(), channelId,
+                        notification.getPostTime()));
+            }
+
+            Collections.sort(matching, (a, b) -> a.postTime < b.postTime ? -1
+                    : a.postTime > b.postTime ? 1 : Integer.compare(a.platformId, b.platformId));
+
+            int from = Math.min(Math.max(offset, 0), matching.size());
+            int to = Math.min(from + Math.max(limit, 0), matching.size());
+            return new ArrayList<>(matching.subList(from, to));
+        }
+    }
+
+    /** Implemented by the arguments that can be sent in a batch. */
+    private interface BundleConvertible {
+        Bundle toBundle();
+    }
+
+    /**
+     * The arguments for showing a notification, see
+     * {@link #notify(String, int, Notification, String)}.
+     */
+    public static class NotifyNotificationArgs implements BundleConvertible {
         public final String platformTag;
         public final int platformId;
         public final Notification notification;
@@ -160,7 +416,7 @@ public class TrustedWebActivityServiceWrapper {
             this.channelName = channelName;
         }
 
-        public static NotifyNotificationArgs fromBundle(Bundle bundle) {
+        static NotifyNotificationArgs fromBundle(Bundle bundle) {
             ensureBundleContains(bundle, KEY_PLATFORM_TAG);
             ensureBundleContains(bundle, KEY_PLATFORM_ID);
             ensureBundleContains(bundle, KEY_NOTIFICATION);
@@ -172,6 +428,7 @@ public class TrustedWebActivityServiceWrapper {
                     bundle.getString(KEY_CHANNEL_NAME));
         }
 
+        @Override
         public Bundle toBundle() {
             Bundle args = new Bundle();
             args.putString(KEY_PLATFORM_TAG, platformTag);
@@ -182,7 +439,8 @@ public class TrustedWebActivityServiceWrapper {
         }
     }
 
-    static class CancelNotificationArgs {
+    /** The arguments for cancelling a notification, see {@link #cancel(String, int)}. */
+    public static class CancelNotificationArgs implements BundleConvertible {
         public final String platformTag;
         public final int platformId;
 
@@ -191,7 +449,7 @@ public class TrustedWebActivityServiceWrapper {
             this.platformId = platformId;
         }
 
-        public static CancelNotificationArgs fromBundle(Bundle bundle) {
+        static CancelNotificationArgs fromBundle(Bundle bundle) {
             ensureBundleContains(bundle, KEY_PLATFORM_TAG);
             ensureBundleContains(bundle, KEY_PLATFORM_ID);
 
@@ -199,6 +457,7 @@ public class TrustedWebActivityServiceWrapper {
                     bundle.getInt(KEY_PLATFORM_ID));
         }
 
+        @Override
         public Bundle toBundle() {
             Bundle args = new Bundle();
             args.putString(KEY_PLATFORM_TAG, platformTag);
@@ -207,6 +466,49 @@ public class TrustedWebActivityServiceWrapper {
         }
     }
 
+    static class BatchArgs {
+        public final Bundle[] items;
+
+        public BatchArgs(Bundle[] items) {
+            this.items = items;
+        }
+
+        public static BatchArgs fromBundle(Bundle bundle) {
+            ensureBundleContains(bundle, KEY_BATCH);
+            Parcelable[] parcelables = bundle.getParcelableArray(KEY_BATCH);
+            Bundle[] items = new Bundle[parcelables.length];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = (Bundle) parcelables[i];
+            }
+            return new BatchArgs(items);
+        }
+
+        public Bundle toBundle() {
+            Bundle args = new Bundle();
+            args.putParcelableArray(KEY_BATCH, items);
+            return args;
+        }
+    }
+
+    static class BatchResultArgs {
+        public final boolean[] successes;
+
+        public BatchResultArgs(boolean[] successes) {
+            this.successes = successes;
+        }
+
+        public static BatchResultArgs fromBundle(Bundle bundle) {
+            ensureBundleContains(bundle, KEY_BATCH_SUCCESS);
+            return new BatchResultArgs(bundle.getBooleanArray(KEY_BATCH_SUCCESS));
+        }
+
+        public Bundle toBundle() {
+            Bundle args = new Bundle();
+            args.putBooleanArray(KEY_BATCH_SUCCESS, successes);
+            return args;
+        }
+    }
+
     static class ResultArgs {
         public final boolean success;
 
@@ -246,6 +548,83 @@ public class TrustedWebActivityServiceWrapper {
         }
     }
 
+    static class NotificationQueryArgs {
+        @Nullable
+        public final String tagPrefix;
+        public final int offset;
+        public final int limit;
+
+        public NotificationQueryArgs(@Nullable String tagPrefix, int offset, int limit) {
+            this.tagPrefix = tagPrefix;
+            this.offset = offset;
+            this.limit = limit;
+        }
+
+        public static NotificationQueryArgs fromBundle(Bundle bundle) {
+            ensureBundleContains(bundle, KEY_OFFSET);
+            ensureBundleContains(bundle, KEY_LIMIT);
+            return new NotificationQueryArgs(bundle.getString(KEY_TAG_PREFIX),
+                    bundle.getInt(KEY_OFFSET), bundle.getInt(KEY_LIMIT));
+        }
+
+        public Bundle toBundle() {
+            Bundle args = new Bundle();
+            args.putString(KEY_TAG_PREFIX, tagPrefix);
+            args.putInt(KEY_OFFSET, offset);
+            args.putInt(KEY_LIMIT, limit);
+            return args;
+        }
+    }
+
+    static class NotificationDescriptorsArgs {
+        public final List<NotificationDescriptor> descriptors;
+
+        public NotificationDescriptorsArgs(List<NotificationDescriptor> descriptors) {
+            this.descriptors = descriptors;
+        }
+
+        public static NotificationDescriptorsArgs fromBundle(Bundle bundle) {
+            ensureBundleContains(bundle, KEY_DESCRIPTOR_TAGS);
+            ensureBundleContains(bundle, KEY_DESCRIPTOR_IDS);
+            ensureBundleContains(bundle, KEY_DESCRIPTOR_CHANNEL_IDS);
+            ensureBundleContains(bundle, KEY_DESCRIPTOR_POST_TIMES);
+
+            String[] tags = bundle.getStringArray(KEY_DESCRIPTOR_TAGS);
+            int[] ids = bundle.getIntArray(KEY_DESCRIPTOR_IDS);
+            String[] channelIds = bundle.getStringArray(KEY_DESCRIPTOR_CHANNEL_IDS);
+            long[] postTimes = bundle.getLongArray(KEY_DESCRIPTOR_POST_TIMES);
+
+            List<NotificationDescriptor> descriptors = new ArrayList<>(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                descriptors.add(
+                        new NotificationDescriptor(tags[i], ids[i], channelIds[i], postTimes[i]));
+            }
+            return new NotificationDescriptorsArgs(descriptors);
+        }
+
+        public Bundle toBundle() {
+            int size = descriptors.size();
+            String[] tags = new String[size];
+            int[] ids = new int[size];
+            String[] channelIds = new String[size];
+            long[] postTimes = new long[size];
+            for (int i = 0; i < size; i++) {
+                NotificationDescriptor descriptor = descriptors.get(i);
+                tags[i] = descriptor.platformTag;
+                ids[i] = descriptor.platformId;
+                channelIds[i] = descriptor.channelId;
+                postTimes[i] = descriptor.postTime;
+            }
+
+            Bundle args = new Bundle();
+            args.putStringArray(KEY_DESCRIPTOR_TAGS, tags);
+            args.putIntArray(KEY_DESCRIPTOR_IDS, ids);
+            args.putStringArray(KEY_DESCRIPTOR_CHANNEL_IDS, channelIds);
+            args.putLongArray(KEY_DESCRIPTOR_POST_TIMES, postTimes);
+            return args;
+        }
+    }
+
     static class NotificationsEnabledArgs {
         public final String channelName;
 
@@ -3,11 +3,13 @@ package android.support.customtabs.trusted;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.support.annotation.ColorInt;
+import android.support.annotation.DrawableRes;
 import android.support.annotation.Nullable;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.graphics.drawable.DrawableCompat;
@@ -84,4 +86,96 @@ public class Utils {
         drawable.draw(canvas);
         return bitmap;
     }
+
+    /**
+     * Converts drawable located at given resource id into a Bitmap that is no larger than needed to
+     * cover an area of {@code reqWidth} x {@code reqHeight} pixels. Bitmap resources are subsampled
+     * while decoding, other drawables are drawn at a proportionally reduced size. The memory of
+     * {@code reusable} is used for the result when possible. The returned Bitmap is mutable.
+     * Can be called from a background thread.
+     */
+    @Nullable
+    public static Bitmap convertDrawableToSampledBitmap(Context context,
+            @DrawableRes int drawableId, int reqWidth, int reqHeight, @Nullable Bitmap reusable) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(context.getResources(), drawableId, options);
+
+        if (options.outWidth > 0 && options.outHeight > 0) {
+            options.inJustDecodeBounds = false;
+            options.inMutable = true;
+            options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                    reqWidth, reqHeight);
+            if (canReuseForDecoding(reusable, options)) {
+                options.inBitmap = reusable;
+            }
+            try {
+                return BitmapFactory.decodeResource(context.getResources(), drawableId, options);
+            } catch (IllegalArgumentException e) {
+                // Thrown if inBitmap turns out to be unsuitable after all.
+                options.inBitmap = null;
+                return BitmapFactory.decodeResource(context.getResources(), drawableId, options);
+            }
+        }
+
+        // Not a bitmap resource (e.g. a vector drawable), so draw it at a reduced size instead.
+        Drawable drawable = ContextCompat.getDrawable(context, drawableId);
+        if (drawable == null) {
+            return null;
+        }
+        drawable = DrawableCompat.wrap(drawable);
+
+        int width = drawable.getIntrinsicWidth();
+        int height = drawable.getIntrinsicHeight();
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        float scale = Math.min(1f,
+                Math.max((float) reqWidth / width, (float) reqHeight / height));
+        width = Math.max(1, Math.round(width * scale));
+        height = Math.max(1, Math.round(height * scale));
+
+        Bitmap bitmap;
+        if (reusable != null && reusable.isMutable() && !reusable.isRecycled()
+                && reusable.getWidth() == width && reusable.getHeight() == height
+                && reusable.getConfig() == Bitmap.Config.ARGB_8888) {
+            bitmap = reusable;
+            bitmap.eraseColor(Color.TRANSPARENT);
+        } else {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, width, height);
+        drawable.draw(canvas);
+        return bitmap;
+    }
+
+    /**
+     * Calculates the largest power of two sample size that keeps both dimensions of the decoded
+     * image no smaller than the requested ones.
+     */
+    private static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) return inSampleSize;
+        while (width / (inSampleSize * 2) >= reqWidth
+                && height / (inSampleSize * 2) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    private static boolean canReuseForDecoding(@Nullable Bitmap reusable,
+            BitmapFactory.Options options) {
+        if (reusable == null || !reusable.isMutable() || reusable.isRecycled()) return false;
+        int width = options.outWidth / options.inSampleSize;
+        int height = options.outHeight / options.inSampleSize;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Decoded size may be rounded up by the decoder, so allow some slack.
+            int byteCount = (width + 1) * (height + 1) * 4;
+            return byteCount <= reusable.getAllocationByteCount();
+        }
+        // Before KitKat only bitmaps of exactly the same size and no subsampling can be reused.
+        return options.inSampleSize == 1 && reusable.getWidth() == width
+                && reusable.getHeight() == height;
+    }
 }
@@ -16,11 +16,16 @@ package android.support.customtabs.trusted.splashscreens;
 
 import static android.view.ViewGroup.LayoutParams.MATCH_PARENT;
 
+import android.animation.ValueAnimator;
 import android.app.Activity;
 import android.graphics.Bitmap;
+import android.graphics.Color;
 import android.graphics.Matrix;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Looper;
 import android.support.annotation.ColorInt;
 import android.support.annotation.DrawableRes;
 import android.support.annotation.NonNull;
@@ -69,9 +74,29 @@ public class PwaWrapperSplashScreenStrategy implements SplashScreenStrategy {
     @Nullable
     private Bitmap mSplashImage;
 
+    @Nullable
+    private ImageView mSplashImageView;
+
+    private boolean mUseWindowBackground;
+
+    @Nullable
+    private Drawable mWindowBackground;
+
+    @Nullable
+    private SplashImageDecodeTask mSplashImageDecodeTask;
+
     @Nullable
     private SplashImageTransferTask mSplashImageTransferTask;
 
+    private boolean mSplashImageDecodingFinished;
+
+    private boolean mSplashImageTransferFinished;
+
+    private boolean mSplashScreenFinished;
+
+    @Nullable
+    private Runnable mOnSplashImageDecodedRunnable;
+
     @Nullable
     private String mProviderPackage;
 
@@ -111,6 +136,16 @@ public class PwaWrapperSplashScreenStrategy implements SplashScreenStrategy {
         mFadeOutDurationMillis = fadeOutDurationMillis;
     }
 
+    /**
+     * Makes the splash screen be drawn as the background of the Activity's window instead of
+     * its content view. That way the very first frame already contains the splash screen, at the
+     * cost of decoding the image, sampled down to the size of the display, on the UI thread.
+     * Must be called before {@link #onTwaLaunchInitiated}.
+     */
+    public void setUseWindowBackground(boolean useWindowBackground) {
+        mUseWindowBackground = useWindowBackground;
+    }
+
     @Override
     public void onTwaLaunchInitiated(String providerPackage, TrustedWebActivityIntentBuilder builder) {
         mProviderPackage = providerPackage;
@@ -122,34 +157,65 @@ public class PwaWrapperSplashScreenStrategy implements SplashScreenStrategy {
             return;
         }
 
-        showSplashScreen();
-        if (mSplashImage != null) {
-            customizeStatusAndNavBarDuringSplashScreen(providerPackage, builder);
+        SplashImageDecodeTask decodeTask = new SplashImageDecodeTask(mActivity, mDrawableId);
+        if (mUseWindowBackground) {
+            // The image has to be in the very first frame, it's decoded once, sampled down, and
+            // that same Bitmap is later transferred to the browser.
+            Bitmap bitmap = decodeTask.decodeSynchronously();
+            if (bitmap != null) {
+                mWindowBackground = SplashWindowBackground.create(mActivity, bitmap,
+                        mBackgroundColor, mScaleType, mTransformationMatrix);
+                mActivity.getWindow().setBackgroundDrawable(mWindowBackground);
+                onSplashImageDecoded(bitmap, providerPackage, builder);
+                return;
+            }
+            Log.w(TAG, "Failed to create window background, falling back to a content view");
         }
+
+        showSplashScreen();
+        mSplashImageDecodeTask = decodeTask;
+        mSplashImageDecodeTask.execute(
+                bitmap -> onSplashImageDecoded(bitmap, providerPackage, builder));
     }
 
     /**
      * Splash screen is shown both before the Trusted Web Activity is launched - in this activity,
      * and for some time after that - in browser, on top of web page being loaded.
-     * This method shows the splash screen in the LauncherActivity.
+     * This method shows the splash screen in the LauncherActivity. The background color is shown
+     * right away, while the image is set once it's decoded (see {@link SplashImageDecodeTask}).
+     * In window background mode, the whole splash screen is shown right away instead, see
+     * {@link SplashWindowBackground}.
      */
     private void showSplashScreen() {
-        mSplashImage = Utils.convertDrawableToBitmap(mActivity, mDrawableId);
+        mSplashImageView = new ImageView(mActivity);
+        mSplashImageView.setLayoutParams(new ViewGroup.LayoutParams(MATCH_PARENT, MATCH_PARENT));
+        mSplashImageView.setBackgroundColor(mBackgroundColor);
+
+        mSplashImageView.setScaleType(mScaleType);
+        if (mScaleType == ImageView.ScaleType.MATRIX) {
+            mSplashImageView.setImageMatrix(mTransformationMatrix);
+        }
+
+        mActivity.setContentView(mSplashImageView);
+    }
+
+    private void onSplashImageDecoded(@Nullable Bitmap bitmap, String providerPackage,
+            TrustedWebActivityIntentBuilder builder) {
+        mSplashImageDecodingFinished = true;
+        mSplashImage = bitmap;
         if (mSplashImage == null) {
             Log.w(TAG, "Failed to retrieve splash image from provided drawable id");
-            return;
+        } else {
+            if (mSplashImageView != null) {
+                mSplashImageView.setImageBitmap(mSplashImage);
+            }
+            customizeStatusAndNavBarDuringSplashScreen(providerPackage, builder);
         }
-        ImageView view = new ImageView(mActivity);
-        view.setLayoutParams(new ViewGroup.LayoutParams(MATCH_PARENT, MATCH_PARENT));
-        view.setImageBitmap(mSplashImage);
-        view.setBackgroundColor(mBackgroundColor);
 
-        view.setScaleType(mScaleType);
-        if (mScaleType == ImageView.ScaleType.MATRIX) {
-            view.setImageMatrix(mTransformationMatrix);
+        if (mOnSplashImageDecodedRunnable != null) {
+            mOnSplashImageDecodedRunnable.run();
+            mOnSplashImageDecodedRunnable = null;
         }
-
-        mActivity.setContentView(view);
     }
 
     /**
@@ -175,13 +241,26 @@ public class PwaWrapperSplashScreenStrategy implements SplashScreenStrategy {
     public void configureTwaBuilder(TrustedWebActivityIntentBuilder builder,
             CustomTabsSession session,
             Runnable onReadyCallback) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            // The state of the splash screen is only accessed on the UI thread, which is where
+            // the image is decoded into.
+            mActivity.runOnUiThread(() -> configureTwaBuilder(builder, session, onReadyCallback));
+            return;
+        }
+        if (mProviderSupportsSplashScreens && !mSplashImageDecodingFinished) {
+            mOnSplashImageDecodedRunnable =
+                    () -> configureTwaBuilder(builder, session, onReadyCallback);
+            return;
+        }
         if (!mProviderSupportsSplashScreens || mSplashImage == null) {
-            onReadyCallback.run();
+            fadeOutWindowBackground();
+            onSplashScreenFinished(onReadyCallback);
             return;
         }
         if (TextUtils.isEmpty(mFileProviderAuthority)) {
             Log.w(TAG, "FileProvider authority not specified, can't transfer splash image.");
-            onReadyCallback.run();
+            fadeOutWindowBackground();
+            onSplashScreenFinished(onReadyCallback);
             return;
         }
         mSplashImageTransferTask = new SplashImageTransferTask(mActivity,
@@ -194,19 +273,50 @@ public class PwaWrapperSplashScreenStrategy implements SplashScreenStrategy {
 
     private void onSplashImageTransferred(TrustedWebActivityIntentBuilder builder, boolean success,
             Runnable onReadyCallback) {
+        mSplashImageTransferFinished = true;
         if (!success) {
             Log.w(TAG, "Failed to transfer splash image.");
-            onReadyCallback.run();
+            fadeOutWindowBackground();
+            onSplashScreenFinished(onReadyCallback);
             return;
         }
         builder.setSplashScreenParams(makeSplashScreenParamsBundle());
 
         runWhenEnterAnimationComplete(() -> {
-            onReadyCallback.run();
+            onSplashScreenFinished(onReadyCallback);
             mActivity.overridePendingTransition(0, 0); // Avoid window animations during transition.
         });
     }
 
+    /**
+     * Runs the callback that launches the TWA. No more splash screens are expected to be shown
+     * in this process after that, so the memory kept for reusing the image is released.
+     */
+    private void onSplashScreenFinished(Runnable onReadyCallback) {
+        mSplashScreenFinished = true;
+        SplashImageDecodeTask.clearPooledBitmap();
+        onReadyCallback.run();
+    }
+
+    /**
+     * If the splash screen is shown as a window background but can't be transferred into the
+     * browser, fades it out the same way the browser would.
+     */
+    private void fadeOutWindowBackground() {
+        if (mWindowBackground == null) return;
+        Drawable background = mWindowBackground;
+        mWindowBackground = null;
+        if (mFadeOutDurationMillis <= 0) {
+            mActivity.getWindow().setBackgroundDrawable(new ColorDrawable(Color.TRANSPARENT));
+            return;
+        }
+        ValueAnimator animator = ValueAnimator.ofInt(255, 0);
+        animator.setDuration(mFadeOutDurationMillis);
+        animator.addUpdateListener(
+                animation -> background.setAlpha((int) animation.getAnimatedValue()));
+        animator.start();
+    }
+
     private void runWhenEnterAnimationComplete(Runnable runnable) {
         if (mEnterAnimationComplete) {
             runnable.run();
@@ -246,8 +356,22 @@ public class PwaWrapperSplashScreenStrategy implements SplashScreenStrategy {
      * Performs clean-up.
      */
     public void destroy() {
+        if (mSplashImageDecodeTask != null) {
+            mSplashImageDecodeTask.cancel();
+        }
         if (mSplashImageTransferTask != null) {
             mSplashImageTransferTask.cancel();
         }
+        if (mSplashImageView != null) {
+            mSplashImageView.setImageBitmap(null);
+        }
+        // The image is only kept for reuse if the splash screen didn't get to finish, e.g. when
+        // the Activity is recreated, and if it is not being written to a file at the moment.
+        if (mSplashImage != null && !mSplashScreenFinished
+                && (mSplashImageTransferTask == null || mSplashImageTransferFinished)) {
+            SplashImageDecodeTask.releaseBitmap(mSplashImage);
+        }
+        mSplashImage = null;
+        mOnSplashImageDecodedRunnable = null;
     }
 }
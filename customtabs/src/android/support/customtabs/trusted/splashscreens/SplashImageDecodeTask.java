@@ -0,0 +1,152 @@
+// Copyright 2019 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package android.support.customtabs.trusted.splashscreens;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.AsyncTask;
+import android.support.annotation.DrawableRes;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.customtabs.trusted.Utils;
+import android.util.DisplayMetrics;
+
+/**
+ * Decodes the splash image on a background thread, sampled down to the size of the display.
+ *
+ * The memory of the last splash image released with {@link #releaseBitmap} is reused for the next
+ * decoding, so showing the splash screen again in one process, e.g. after the Activity is
+ * recreated, doesn't allocate a new full-screen bitmap. Once the splash screen has finished, the
+ * memory is released with {@link #clearPooledBitmap}.
+ */
+public class SplashImageDecodeTask {
+
+    @Nullable
+    private static Bitmap sPooledBitmap;
+
+    private final Context mContext;
+    @DrawableRes
+    private final int mDrawableId;
+    private final int mReqWidth;
+    private final int mReqHeight;
+
+    @Nullable
+    private Callback mCallback;
+
+    /**
+     * @param context {@link Context} to use.
+     * @param drawableId Resource id of the Drawable to decode.
+     */
+    public SplashImageDecodeTask(Context context, @DrawableRes int drawableId) {
+        mContext = context.getApplicationContext();
+        mDrawableId = drawableId;
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        mReqWidth = metrics.widthPixels;
+        mReqHeight = metrics.heightPixels;
+    }
+
+    /**
+     * Executes the task. Should be called only once.
+     * @param callback {@link Callback} to be called on the UI thread when done.
+     */
+    public void execute(Callback callback) {
+        assert mAsyncTask.getStatus() == AsyncTask.Status.PENDING;
+        mCallback = callback;
+        mAsyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Decodes the image on the calling thread instead, for when it's needed in the very first
+     * frame. Should be called instead of {@link #execute}.
+     * @return The decoded image, or null if decoding failed.
+     */
+    @Nullable
+    public Bitmap decodeSynchronously() {
+        Bitmap reusable = obtainPooledBitmap();
+        Bitmap bitmap = Utils.convertDrawableToSampledBitmap(mContext, mDrawableId, mReqWidth,
+                mReqHeight, reusable);
+        if (reusable != null && bitmap != reusable) {
+            // Wasn't suitable this time, keep it for later.
+            releaseBitmap(reusable);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Cancels the execution. The callback passed into {@link #execute} won't be called, and
+     * the references to it will be released.
+     */
+    public void cancel() {
+        mAsyncTask.cancel(false);
+        mCallback = null;
+    }
+
+    /**
+     * Returns a splash image that is no longer displayed or used in any other way, so that its
+     * memory can be reused for decoding the next one.
+     */
+    public static synchronized void releaseBitmap(Bitmap bitmap) {
+        if (bitmap.isMutable() && !bitmap.isRecycled()) {
+            sPooledBitmap = bitmap;
+        }
+    }
+
+    /**
+     * Drops the splash image kept for reuse, if any. Call once no more splash screens are
+     * expected to be shown, so that the full-screen bitmap isn't kept in memory for the rest of
+     * the process' life.
+     */
+    public static synchronized void clearPooledBitmap() {
+        sPooledBitmap = null;
+    }
+
+    @VisibleForTesting
+    @Nullable
+    static synchronized Bitmap obtainPooledBitmap() {
+        Bitmap bitmap = sPooledBitmap;
+        sPooledBitmap = null;
+        return bitmap;
+    }
+
+    @SuppressLint("StaticFieldLeak") // No leaking should happen
+    private final AsyncTask<Void, Void, Bitmap> mAsyncTask = new AsyncTask<Void, Void, Bitmap>() {
+
+        @Override
+        protected Bitmap doInBackground(Void... args) {
+            return decodeSynchronously();
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap bitmap) {
+            if (mCallback != null) {
+                mCallback.onFinished(bitmap);
+            }
+        }
+
+        @Override
+        protected void onCancelled(Bitmap bitmap) {
+            if (bitmap != null) {
+                releaseBitmap(bitmap);
+            }
+        }
+    };
+
+    /** Callback to be called when the splash image is decoded. */
+    public interface Callback {
+        /** @param bitmap The decoded image, or null if decoding failed. */
+        void onFinished(@Nullable Bitmap bitmap);
+    }
+}
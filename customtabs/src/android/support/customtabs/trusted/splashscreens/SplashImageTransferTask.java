@@ -2,12 +2,12 @@ package android.support.customtabs.trusted.splashscreens;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.os.AsyncTask;
 import android.support.annotation.Nullable;
 import android.support.customtabs.CustomTabsSession;
+import android.support.customtabs.KeyValueStore;
 import android.support.customtabs.TrustedWebUtils;
 import android.support.v4.content.FileProvider;
 import android.util.Log;
@@ -25,8 +25,9 @@ public class SplashImageTransferTask {
 
     private static final String FOLDER_NAME = "twa_splash";
     private static final String FILE_NAME = "splash_image.png";
+    /** The SharedPreferences file the last update time used to be stored in. */
     private static final String PREFS_FILE = "splashImagePrefs";
-    private static final String PREF_LAST_UPDATE_TIME = "lastUpdateTime";
+    private static final String KEY_LAST_UPDATE_TIME = PREFS_FILE + "/lastUpdateTime";
 
     private final Context mContext;
     private final Bitmap mBitmap;
@@ -87,10 +88,10 @@ public class SplashImageTransferTask {
                 }
             }
             File file = new File(dir, FILE_NAME);
-            SharedPreferences prefs =
-                    mContext.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
+            KeyValueStore store = KeyValueStore.getInstance(mContext);
+            store.migrateFromSharedPreferences(mContext, PREFS_FILE, PREFS_FILE);
             long lastUpdateTime = getLastAppUpdateTime();
-            if (file.exists() && lastUpdateTime == prefs.getLong(PREF_LAST_UPDATE_TIME, 0)) {
+            if (file.exists() && lastUpdateTime == store.getLong(KEY_LAST_UPDATE_TIME, 0)) {
                 // Don't overwrite existing file, if it was saved later than the last time app was
                 // updated
                 return transferToCustomTabsProvider(file);
@@ -99,7 +100,9 @@ public class SplashImageTransferTask {
                 if (isCancelled()) return false;
                 mBitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
                 os.flush();
-                prefs.edit().putLong(PREF_LAST_UPDATE_TIME, lastUpdateTime).commit();
+                // Written to disk asynchronously. Should the process die before that, the file
+                // is just saved again next time.
+                store.putLong(KEY_LAST_UPDATE_TIME, lastUpdateTime);
 
                 if (isCancelled()) return false;
                 return transferToCustomTabsProvider(file);
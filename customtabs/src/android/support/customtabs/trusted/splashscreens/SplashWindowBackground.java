@@ -0,0 +1,163 @@
+// Copyright 2019 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package android.support.customtabs.trusted.splashscreens;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Matrix;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.LayerDrawable;
+import android.support.annotation.ColorInt;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.widget.ImageView;
+
+/**
+ * Builds a window background that looks the same as the splash screen shown by
+ * {@link PwaWrapperSplashScreenStrategy}: the image laid out according to the scale type on top of
+ * the background color. Being a window background, it is drawn in the very first frame, without
+ * waiting for the content view to be created.
+ *
+ * The image is the Bitmap decoded by {@link SplashImageDecodeTask#decodeSynchronously}, sampled
+ * down to the size of the display, which is also the one transferred to the browser.
+ */
+class SplashWindowBackground {
+
+    private SplashWindowBackground() {}
+
+    /**
+     * Creates the background Drawable.
+     */
+    static LayerDrawable create(Context context, Bitmap bitmap,
+            @ColorInt int backgroundColor, ImageView.ScaleType scaleType,
+            @Nullable Matrix transformationMatrix) {
+        // Sized the same way as in ImageView#setImageBitmap.
+        Drawable image = new BitmapDrawable(context.getResources(), bitmap);
+        return new LayerDrawable(new Drawable[] {
+                new ColorDrawable(backgroundColor),
+                new ScaledDrawable(image, scaleType, transformationMatrix)
+        });
+    }
+
+    /**
+     * Draws the wrapped Drawable within its bounds the same way {@link ImageView} does for the
+     * given {@link ImageView.ScaleType}.
+     */
+    private static class ScaledDrawable extends Drawable {
+        private final Drawable mDrawable;
+        private final ImageView.ScaleType mScaleType;
+        @Nullable
+        private final Matrix mTransformationMatrix;
+        private final Matrix mDrawMatrix = new Matrix();
+
+        ScaledDrawable(Drawable drawable, ImageView.ScaleType scaleType,
+                @Nullable Matrix transformationMatrix) {
+            mDrawable = drawable;
+            mScaleType = scaleType;
+            mTransformationMatrix = transformationMatrix;
+        }
+
+        @Override
+        protected void onBoundsChange(Rect bounds) {
+            super.onBoundsChange(bounds);
+            int dwidth = mDrawable.getIntrinsicWidth();
+            int dheight = mDrawable.getIntrinsicHeight();
+            int vwidth = bounds.width();
+            int vheight = bounds.height();
+
+            mDrawMatrix.reset();
+            if (dwidth <= 0 || dheight <= 0 || mScaleType == ImageView.ScaleType.FIT_XY) {
+                mDrawable.setBounds(0, 0, vwidth, vheight);
+                mDrawMatrix.postTranslate(bounds.left, bounds.top);
+                return;
+            }
+            mDrawable.setBounds(0, 0, dwidth, dheight);
+
+            switch (mScaleType) {
+                case MATRIX:
+                    if (mTransformationMatrix != null) {
+                        mDrawMatrix.set(mTransformationMatrix);
+                    }
+                    break;
+                case CENTER:
+                    mDrawMatrix.setTranslate(Math.round((vwidth - dwidth) * 0.5f),
+                            Math.round((vheight - dheight) * 0.5f));
+                    break;
+                case CENTER_CROP: {
+                    float scale = Math.max((float) vwidth / dwidth, (float) vheight / dheight);
+                    mDrawMatrix.setScale(scale, scale);
+                    mDrawMatrix.postTranslate(Math.round((vwidth - dwidth * scale) * 0.5f),
+                            Math.round((vheight - dheight * scale) * 0.5f));
+                    break;
+                }
+                case CENTER_INSIDE: {
+                    float scale = Math.min(1f,
+                            Math.min((float) vwidth / dwidth, (float) vheight / dheight));
+                    mDrawMatrix.setScale(scale, scale);
+                    mDrawMatrix.postTranslate(Math.round((vwidth - dwidth * scale) * 0.5f),
+                            Math.round((vheight - dheight * scale) * 0.5f));
+                    break;
+                }
+                default:
+                    mDrawMatrix.setRectToRect(new RectF(0, 0, dwidth, dheight),
+                            new RectF(0, 0, vwidth, vheight), toScaleToFit(mScaleType));
+                    break;
+            }
+            mDrawMatrix.postTranslate(bounds.left, bounds.top);
+        }
+
+        private static Matrix.ScaleToFit toScaleToFit(ImageView.ScaleType scaleType) {
+            switch (scaleType) {
+                case FIT_START:
+                    return Matrix.ScaleToFit.START;
+                case FIT_END:
+                    return Matrix.ScaleToFit.END;
+                default:
+                    return Matrix.ScaleToFit.CENTER;
+            }
+        }
+
+        @Override
+        public void draw(@NonNull Canvas canvas) {
+            int saveCount = canvas.save();
+            canvas.clipRect(getBounds());
+            canvas.concat(mDrawMatrix);
+            mDrawable.draw(canvas);
+            canvas.restoreToCount(saveCount);
+        }
+
+        @Override
+        public void setAlpha(int alpha) {
+            mDrawable.setAlpha(alpha);
+        }
+
+        @Override
+        public void setColorFilter(@Nullable ColorFilter colorFilter) {
+            mDrawable.setColorFilter(colorFilter);
+        }
+
+        @Override
+        public int getOpacity() {
+            return PixelFormat.TRANSLUCENT;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link PostMessagePipe}, with both sides of a session in this process.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PostMessagePipeTest {
+    private static final long FRAME_TIMEOUT_MS = 200;
+    private static final long FRAME_ARRIVAL_TIMEOUT_MS = 50;
+    private static final long ANSWER_TIMEOUT_MS = 200;
+
+    private final IBinder mSession = new Binder();
+    private final PostMessagePipe.Registry mSender =
+            new PostMessagePipe.Registry(FRAME_TIMEOUT_MS, FRAME_ARRIVAL_TIMEOUT_MS,
+                    ANSWER_TIMEOUT_MS);
+    private final PostMessagePipe.Registry mReceiver =
+            new PostMessagePipe.Registry(FRAME_TIMEOUT_MS, FRAME_ARRIVAL_TIMEOUT_MS,
+                    ANSWER_TIMEOUT_MS);
+
+    @Before
+    public void setUp() {
+        Bundle offer = new Bundle();
+        mSender.addReadEnd(mSession, offer);
+        assertTrue(mReceiver.acceptReadEnd(mSession, offer));
+    }
+
+    @After
+    public void tearDown() {
+        mSender.close(mSession);
+        mReceiver.close(mSession);
+    }
+
+    @Test
+    public void sendsLargeMessagesThroughThePipe() {
+        answer();
+
+        assertEquals(-1, mSender.write(mSession, "small"));
+        String message = createLargeMessage('a');
+        assertEquals(message, mReceiver.resolve(mSession, "", write(message)));
+    }
+
+    @Test
+    public void dropsFramesBeforeTheOneTaken() {
+        answer();
+        Bundle first = write(createLargeMessage('a'));
+        String secondMessage = createLargeMessage('b');
+        Bundle second = write(secondMessage);
+        String thirdMessage = createLargeMessage('c');
+        Bundle third = write(thirdMessage);
+
+        assertEquals(secondMessage, mReceiver.resolve(mSession, "", second));
+        // Its postMessage came too late, the frame has been dropped already.
+        long start = SystemClock.uptimeMillis();
+        assertNull(mReceiver.resolve(mSession, "", first));
+        assertTrue(SystemClock.uptimeMillis() - start < FRAME_TIMEOUT_MS);
+        assertEquals(thirdMessage, mReceiver.resolve(mSession, "", third));
+    }
+
+    @Test
+    public void givesUpOnFramesThatDontArrive() {
+        answer();
+        Bundle extras = new Bundle();
+        extras.putInt(PostMessagePipe.EXTRA_FRAME_ID, 0);
+
+        long start = SystemClock.uptimeMillis();
+        assertNull(mReceiver.resolve(mSession, "", extras));
+        // Nothing is being read, so it doesn't wait for the full frame timeout.
+        long elapsed = SystemClock.uptimeMillis() - start;
+        assertTrue(elapsed >= FRAME_ARRIVAL_TIMEOUT_MS);
+        assertTrue(elapsed < FRAME_TIMEOUT_MS);
+    }
+
+    @Test
+    public void keepsReadingWhenFramesAreNeverTaken() {
+        answer();
+        // Without their postMessages, the reader would stop once its buffer is full, and so
+        // would the writer once the pipe is.
+        for (int i = 0; i < PostMessagePipe.MAX_BUFFERED_FRAMES + 2; i++) {
+            write(createLargeMessage('a'));
+        }
+        String message = createLargeMessage('b');
+        Bundle last = write(message);
+
+        assertEquals(message, mReceiver.resolve(mSession, "", last));
+    }
+
+    @Test
+    public void closesWhenThePeerCloses() {
+        answer();
+        assertTrue(mSender.hasReadEnd(mSession));
+
+        mReceiver.close(mSession);
+
+        PollingCheck.waitFor(() -> !mSender.hasReadEnd(mSession));
+        assertEquals(-1, mSender.write(mSession, createLargeMessage('a')));
+    }
+
+    @Test
+    public void closesWhenNoPipeIsAnswered() {
+        mSender.watch(mSession, new Binder());
+        assertTrue(mReceiver.hasReadEnd(mSession));
+
+        // The sender closes its end, which the receiver notices.
+        PollingCheck.waitFor(() -> !mReceiver.hasReadEnd(mSession));
+    }
+
+    /** Makes the receiver answer with a pipe of its own, which the sender needs to write. */
+    private void answer() {
+        Bundle answer = new Bundle();
+        mReceiver.addReadEnd(mSession, answer);
+        assertTrue(mSender.acceptReadEnd(mSession, answer));
+    }
+
+    /** Writes the message into the pipe and returns the extras of its postMessage. */
+    private Bundle write(String message) {
+        int frameId = mSender.write(mSession, message);
+        assertTrue(frameId >= 0);
+        Bundle extras = new Bundle();
+        extras.putInt(PostMessagePipe.EXTRA_FRAME_ID, frameId);
+        return extras;
+    }
+
+    private static String createLargeMessage(char c) {
+        char[] chars = new char[PostMessagePipe.LARGE_MESSAGE_THRESHOLD_CHARS];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
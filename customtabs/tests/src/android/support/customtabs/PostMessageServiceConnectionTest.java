@@ -17,9 +17,12 @@
 package android.support.customtabs;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import android.app.Instrumentation;
 import android.content.Context;
+import android.os.Bundle;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
@@ -29,6 +32,8 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.Arrays;
+
 /**
  * Tests for {@link PostMessageServiceConnection} with no {@link CustomTabsService} component.
  */
@@ -79,6 +84,63 @@ public class PostMessageServiceConnectionTest {
         assertEquals(mCallback.getMessages().size(), 2);
     }
 
+    @Test
+    public void testQueuesCallsWhileConnecting() {
+        TestCustomTabsCallback callback = new TestCustomTabsCallback();
+        PostMessageServiceConnection connection = new PostMessageServiceConnection(
+                new CustomTabsSessionToken(callback.getStub(), null));
+
+        // The connection is established on the main thread, so not before this returns.
+        int[] pendingMessageCount = new int[1];
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        instrumentation.runOnMainSync(() -> {
+            connection.bindSessionToPostMessageService(mContext, mContext.getPackageName());
+            connection.notifyMessageChannelReady(null);
+            connection.postMessage("message1", null);
+            connection.postMessage("message2", null);
+            pendingMessageCount[0] = connection.getPendingMessageCount();
+        });
+        assertEquals(2, pendingMessageCount[0]);
+
+        // The counts are updated once all the queued calls have been delivered.
+        PollingCheck.waitFor(() -> connection.getDelayedMessageCount() == 2);
+        assertTrue(callback.isMessageChannelReady());
+        assertEquals(Arrays.asList("message1", "message2"), callback.getMessages());
+        assertEquals(0, connection.getDroppedMessageCount());
+        connection.cleanup(mContext);
+    }
+
+    @Test
+    public void testUnbindWhileDeliveringQueuedCalls() {
+        PostMessageServiceConnection[] connection = new PostMessageServiceConnection[1];
+        TestCustomTabsCallback callback = new TestCustomTabsCallback() {
+            @Override
+            public void onMessageChannelReady(Bundle extras) {
+                super.onMessageChannelReady(extras);
+                // Called while the queued calls are being delivered, as the service is local.
+                connection[0].unbindFromContext(mContext);
+            }
+        };
+        connection[0] = new PostMessageServiceConnection(
+                new CustomTabsSessionToken(callback.getStub(), null));
+
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        instrumentation.runOnMainSync(() -> {
+            connection[0].bindSessionToPostMessageService(mContext, mContext.getPackageName());
+            connection[0].notifyMessageChannelReady(null);
+            connection[0].postMessage("message", null);
+        });
+        PollingCheck.waitFor(callback::isMessageChannelReady);
+        instrumentation.waitForIdleSync();
+
+        // The message queued after the notification has been dropped by the unbind.
+        assertEquals(1, connection[0].getDroppedMessageCount());
+        assertTrue(callback.getMessages().isEmpty());
+        // The service hasn't been published, so this doesn't unbind a second time.
+        assertFalse(connection[0].postMessage("message", null));
+        connection[0].cleanup(mContext);
+    }
+
     @Test
     public void dontUnbindTwice() throws Throwable {
         mConnection.cleanup(mContext);
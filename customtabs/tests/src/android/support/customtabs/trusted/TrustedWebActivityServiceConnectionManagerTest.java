@@ -35,11 +35,16 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 @RunWith(AndroidJUnit4.class)
 @SmallTest
 public class TrustedWebActivityServiceConnectionManagerTest {
     private static final String ORIGIN = "https://localhost:3080";
     private static final Uri GOOD_SCOPE = Uri.parse("https://www.example.com/notifications");
+    private static final Uri OTHER_GOOD_SCOPE =
+            Uri.parse("https://www.example.com/notifications/other");
     private static final Uri BAD_SCOPE = Uri.parse("https://www.notexample.com");
 
     private TrustedWebActivityServiceConnectionManager mManager;
@@ -84,6 +89,81 @@ public class TrustedWebActivityServiceConnectionManagerTest {
         PollingCheck.waitFor(() -> mConnected);
     }
 
+    @Test
+    public void testConnectionFromBackgroundThread() throws InterruptedException {
+        Thread thread = new Thread(() -> assertTrue(mManager.execute(GOOD_SCOPE, ORIGIN,
+                service -> mConnected = service != null)));
+        thread.start();
+        thread.join();
+
+        PollingCheck.waitFor(() -> mConnected);
+    }
+
+    @Test
+    public void testPrewarm() {
+        mManager.prewarm(GOOD_SCOPE, ORIGIN);
+        // Wait for the connection to be opened, at which point no callback is waiting for it.
+        PollingCheck.waitFor(() -> mManager.hasConnection(GOOD_SCOPE)
+                && mManager.getQueueDepth(GOOD_SCOPE) == 0);
+
+        assertTrue(mManager.execute(GOOD_SCOPE, ORIGIN, service -> mConnected = service != null));
+        PollingCheck.waitFor(() -> mConnected);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedConnection() {
+        mManager.unbindAllConnections();
+        mManager = new TrustedWebActivityServiceConnectionManager(mContext, 1,
+                TimeUnit.MINUTES.toMillis(1));
+
+        assertTrue(mManager.execute(GOOD_SCOPE, ORIGIN, service -> mConnected = service != null));
+        PollingCheck.waitFor(() -> mConnected && !mManager.isConnectionBusy(GOOD_SCOPE));
+
+        assertTrue(mManager.execute(OTHER_GOOD_SCOPE, ORIGIN, service -> {}));
+        assertFalse(mManager.hasConnection(GOOD_SCOPE));
+        assertTrue(mManager.hasConnection(OTHER_GOOD_SCOPE));
+    }
+
+    @Test
+    public void testKeepsConnectionsInUse() {
+        mManager.unbindAllConnections();
+        mManager = new TrustedWebActivityServiceConnectionManager(mContext, 1,
+                TimeUnit.MINUTES.toMillis(1));
+        CountDownLatch finish = new CountDownLatch(1);
+
+        assertTrue(mManager.execute(GOOD_SCOPE, ORIGIN, service -> {
+            mConnected = service != null;
+            try {
+                finish.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        PollingCheck.waitFor(() -> mConnected);
+
+        // The limit is exceeded rather than interrupting a callback.
+        assertTrue(mManager.execute(OTHER_GOOD_SCOPE, ORIGIN, service -> {}));
+        assertTrue(mManager.hasConnection(GOOD_SCOPE));
+        assertTrue(mManager.hasConnection(OTHER_GOOD_SCOPE));
+        finish.countDown();
+    }
+
+    @Test
+    public void testUnbindsIdleConnection() {
+        mManager.unbindAllConnections();
+        mManager = new TrustedWebActivityServiceConnectionManager(mContext,
+                TrustedWebActivityServiceConnectionManager.DEFAULT_MAX_CONNECTIONS, 100);
+
+        assertTrue(mManager.execute(GOOD_SCOPE, ORIGIN, service -> mConnected = service != null));
+        PollingCheck.waitFor(() -> mConnected);
+        PollingCheck.waitFor(() -> !mManager.hasConnection(GOOD_SCOPE));
+
+        // A new connection is opened when needed again.
+        mConnected = false;
+        assertTrue(mManager.execute(GOOD_SCOPE, ORIGIN, service -> mConnected = service != null));
+        PollingCheck.waitFor(() -> mConnected);
+    }
+
     @Test
     public void testNoService() {
         boolean delegated = mManager.execute(BAD_SCOPE, ORIGIN, service -> {});
@@ -16,8 +16,11 @@
 
 package android.support.customtabs.trusted;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import android.app.Notification;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -25,6 +28,8 @@ import android.content.ServiceConnection;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.support.customtabs.EnableComponentsTestRule;
+import android.support.customtabs.trusted.TrustedWebActivityServiceWrapper.CancelNotificationArgs;
+import android.support.customtabs.trusted.TrustedWebActivityServiceWrapper.NotifyNotificationArgs;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.SmallTest;
 import android.support.test.rule.ServiceTestRule;
@@ -36,6 +41,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.Arrays;
 import java.util.concurrent.TimeoutException;
 
 @RunWith(AndroidJUnit4.class)
@@ -99,4 +105,39 @@ public class TrustedWebActivityServiceTest {
         mVerifiedProvider.manuallyDisable();
         mService.getSmallIconId();
     }
+
+    @Test
+    public void testBatchedCancellation() throws RemoteException {
+        TrustedWebActivityServiceWrapper wrapper = new TrustedWebActivityServiceWrapper(mService,
+                new ComponentName(mContext, TestTrustedWebActivityService.class));
+        boolean[] results = wrapper.cancel(Arrays.asList(
+                new CancelNotificationArgs("tag1", 1), new CancelNotificationArgs("tag2", 2)));
+        assertArrayEquals(new boolean[] { true, true }, results);
+    }
+
+    @Test
+    public void testBatchedNotification() throws RemoteException {
+        TrustedWebActivityServiceWrapper wrapper = new TrustedWebActivityServiceWrapper(mService,
+                new ComponentName(mContext, TestTrustedWebActivityService.class));
+        boolean[] results = wrapper.notify(Arrays.asList(
+                new NotifyNotificationArgs("tag1", 1, new Notification(), "channel"),
+                new NotifyNotificationArgs("tag2", 2, new Notification(), "channel")));
+        assertArrayEquals(new boolean[] { true, true }, results);
+    }
+
+    @Test
+    public void testActiveNotificationDescriptors() throws RemoteException {
+        TrustedWebActivityServiceWrapper wrapper = new TrustedWebActivityServiceWrapper(mService,
+                new ComponentName(mContext, TestTrustedWebActivityService.class));
+        // TestTrustedWebActivityService only returns null notifications, which are skipped.
+        assertTrue(wrapper.getActiveNotificationDescriptors(null, 0, 10).isEmpty());
+    }
+
+    @Test(expected = SecurityException.class)
+    public void testBatchedCancellationVerificationFailure() throws RemoteException {
+        mVerifiedProvider.manuallyDisable();
+        TrustedWebActivityServiceWrapper wrapper = new TrustedWebActivityServiceWrapper(mService,
+                new ComponentName(mContext, TestTrustedWebActivityService.class));
+        wrapper.cancel(Arrays.asList(new CancelNotificationArgs("tag", 1)));
+    }
 }
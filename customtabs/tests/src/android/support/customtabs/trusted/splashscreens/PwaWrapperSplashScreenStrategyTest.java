@@ -20,6 +20,7 @@ import static android.support.customtabs.testutil.TestUtil.runOnUiThreadBlocking
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -184,6 +185,21 @@ public class PwaWrapperSplashScreenStrategyTest {
         assertTrue(latch.await(3, TimeUnit.SECONDS));
     }
 
+    @Test
+    public void doesntKeepSplashImage_AfterLaunch() throws InterruptedException {
+        mStrategy.onActivityEnterAnimationComplete();
+        initiateLaunch(mStrategy);
+
+        // Called on the instrumentation thread, while the image is decoded on the UI thread.
+        CountDownLatch latch = new CountDownLatch(1);
+        mStrategy.configureTwaBuilder(new TrustedWebActivityIntentBuilder(Uri.EMPTY),
+                mSession, latch::countDown);
+        assertTrue(latch.await(3, TimeUnit.SECONDS));
+        runOnUiThreadBlocking(mStrategy::destroy);
+
+        assertNull(SplashImageDecodeTask.obtainPooledBitmap());
+    }
+
     private void initiateLaunch(PwaWrapperSplashScreenStrategy strategy) {
         runOnUiThreadBlocking(() ->  strategy.onTwaLaunchInitiated(mActivity.getPackageName(),
                 new TrustedWebActivityIntentBuilder(Uri.EMPTY)));